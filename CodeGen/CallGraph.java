@@ -0,0 +1,112 @@
+/* MicroJava Call Graph
+   ====================
+Removes the methods that main cannot reach from the code buffer. The methods
+are the Meth objects of the program scope; they are in address order, and the
+code of a method extends to the start of the next one (or to the end of the
+code). Starting from the method that contains mainPc, the targets of call
+instructions are marked as reached. The reached methods are then moved down
+over the removed ones, and their call and jump targets, their Obj.adr and
+mainPc are relocated. Calls to addresses that start no method of this program
+are left as they are.
+*/
+package MJ.CodeGen;
+
+import java.util.*;
+import MJ.SymTab.Obj;
+
+public class CallGraph {
+	private Code code;
+	private Obj[] meths;		// methods in address order
+	private int[] start, end;	// code of meths[i] is start[i]..end[i]-1
+	private int[] newStart;		// start after the move, or -1 if removed
+
+	// Remove the methods in the list globals that main does not reach;
+	// returns the number of bytes removed
+	public static int prune(Code code, Obj globals) {
+		return new CallGraph().run(code, globals);
+	}
+
+	private int run(Code code, Obj globals) {
+		this.code = code;
+		List<Obj> list = new ArrayList<>();
+		for (Obj o = globals; o != null; o = o.next)
+			if (o.kind == Obj.Meth) list.add(o);
+		int n = list.size();
+		meths = list.toArray(new Obj[n]);
+		start = new int[n]; end = new int[n]; newStart = new int[n];
+		int main = -1;
+		for (int i = 0; i < n; i++) {
+			start[i] = meths[i].adr;
+			end[i] = i + 1 < n ? meths[i + 1].adr : code.pc;
+			if (start[i] > end[i]) return 0;
+			if (start[i] <= code.mainPc && code.mainPc < end[i]) main = i;
+		}
+		if (main < 0) return 0;
+
+		// mark the methods reached from main
+		boolean[] reached = new boolean[n];
+		int[] work = new int[n];
+		int w = 0;
+		reached[main] = true; work[w++] = main;
+		while (w > 0) {
+			int i = work[--w];
+			for (int pos = start[i]; pos < end[i]; ) {
+				int op = code.get(pos), len = Peephole.length(op);
+				if (len == 0) return 0;	// not decodable: keep everything
+				if (op == Code.call || op == Code.call_w) {
+					int j = method(target(pos));
+					if (j >= 0 && !reached[j]) { reached[j] = true; work[w++] = j; }
+				}
+				pos += len;
+			}
+		}
+
+		// move the reached methods down (only ever to lower addresses)
+		int oldPc = code.pc;
+		code.pc = start[0];
+		for (int i = 0; i < n; i++) {
+			if (!reached[i]) { newStart[i] = -1; meths[i].adr = -1; continue; }
+			newStart[i] = code.pc;
+			for (int pos = start[i]; pos < end[i]; pos++) code.put(code.get(pos));
+		}
+
+		// relocate their targets
+		for (int i = 0; i < n; i++) {
+			if (newStart[i] < 0) continue;
+			int delta = start[i] - newStart[i];
+			for (int pos = newStart[i]; pos < newStart[i] + end[i] - start[i]; pos += Peephole.length(code.get(pos))) {
+				int op = code.get(pos);
+				if (op == Code.call || op == Code.call_w) {
+					int j = method(target(pos));
+					if (j >= 0) setTarget(pos, newStart[j]);
+				} else if (op >= Code.jmp && op <= Code.jge || op >= Code.jmp_w && op <= Code.jge_w) {
+					int t = target(pos);
+					if (start[i] <= t && t <= end[i]) setTarget(pos, t - delta);
+				}
+			}
+			meths[i].adr = newStart[i];
+		}
+		code.mainPc -= start[main] - newStart[main];
+		return oldPc - code.pc;
+	}
+
+	private void setTarget(int pos, int adr) {
+		if (code.get(pos) >= Code.jmp_w) code.put4(pos + 1, adr); else code.put2(pos + 1, adr);
+	}
+
+	// Target of the jump or call at pos
+	private int target(int pos) {
+		if (code.get(pos) >= Code.jmp_w) return get4(pos + 1);
+		return (code.get(pos + 1) << 8) | (code.get(pos + 2) & 0xff);
+	}
+
+	private int get4(int pos) {
+		return (code.get(pos) << 24) | ((code.get(pos+1) & 0xff) << 16) | ((code.get(pos+2) & 0xff) << 8) | (code.get(pos+3) & 0xff);
+	}
+
+	// Index of the method starting at adr, or -1
+	private int method(int adr) {
+		int i = Arrays.binarySearch(start, adr);
+		return i >= 0 ? i : -1;
+	}
+}
@@ -3,10 +3,15 @@
 This class holds the code buffer with its access primitives get* and put*.
 It also holds methods to load operands and to generate complex instructions
 such as assignments and jumps.
+Every compilation (Parser) owns its own code buffer. The buffer is a list of
+fixed-size segments that is extended by whole segments, so code is never
+copied while it grows. Jump and call operands are 16 bits; the wide forms
+(jmp_w .. call_w) with 32-bit operands are chosen for targets beyond that.
 */
 package MJ.CodeGen;
 
 import java.io.*;
+import java.util.Arrays;
 import MJ.*;
 import MJ.SymTab.*;
 
@@ -65,7 +70,15 @@ public class Code {
 		print       = 51,
 		bread       = 52,
 		bprint      = 53,
-		trap		    = 54;
+		trap		    = 54,
+		jmp_w       = 55,	// wide forms of jmp .. jge and call (4-byte target)
+		jeq_w       = 56,
+		jne_w       = 57,
+		jlt_w       = 58,
+		jle_w       = 59,
+		jgt_w       = 60,
+		jge_w       = 61,
+		call_w      = 62;
 	public static final int  // compare operators
 		eq = 0,
 		ne = 1,
@@ -74,48 +87,83 @@ public class Code {
 		gt = 4,
 		ge = 5;
 	private static int[] inverse = {ne, eq, ge, gt, le, lt};
-	private static final int bufSize = 8192;
+	private static final int segShift = 12;	// segments of 4 KB
+	private static final int segSize = 1 << segShift;
+	private static final int segMask = segSize - 1;
+	private static final int maxShort = 0x7FFF;	// largest target of a 16-bit jump or call
 
-	private static byte[] buf;	// code buffer
-	public static int pc;				// next free byte in code buffer
-	public static int mainPc;		// pc of main function (set by parser)
-	public static int dataSize;	// length of static data in words (set by parser)
+	private byte[][] segs;	// code buffer: byte pos is segs[pos >> segShift][pos & segMask]
+	private int nSegs;		// number of allocated segments
+	public int pc;				// next free byte in code buffer
+	public int mainPc;		// pc of main function (set by parser)
+	public int dataSize;	// length of static data in words (set by parser)
+
+	private Label pending;	// labels defined at pc whose jumps are not patched yet
+
+	private final Parser parser;	// compilation that owns this buffer
+
+	// initialize code buffer
+	public Code(Parser parser) {
+		this.parser = parser;
+		segs = new byte[4][];
+		pc = 0; mainPc = -1;
+	}
 
 	//--------------- code buffer access ----------------------
 
-	public static void put(int x) {
-		if (pc >= bufSize) {
-			if (pc == bufSize) Parser.error("program too large");
-			pc++;
-		} else
-			buf[pc++] = (byte)x;
+	public void put(int x) {
+		if (pending != null) resolve();
+		int s = pc >> segShift;
+		if (s == nSegs) {	// only the segment table is copied
+			if (nSegs == segs.length) segs = Arrays.copyOf(segs, 2 * nSegs);
+			segs[nSegs++] = new byte[segSize];
+		}
+		segs[s][pc & segMask] = (byte)x;
+		pc++;
+	}
+
+	public void put(int pos, int x) {
+		int oldpc = pc; pc = pos; put(x); pc = oldpc;
 	}
 
-	public static void put2(int x) {
+	public void put2(int x) {
 		put(x>>8); put(x);
 	}
 
-	public static void put2(int pos, int x) {
+	public void put2(int pos, int x) {
 		int oldpc = pc; pc = pos; put2(x); pc = oldpc;
 	}
 
-	public static void put4(int x) {
+	public void put4(int x) {
 		put2(x>>16); put2(x);
 	}
 
-	public static int get(int pos) {
-		return buf[pos];
+	public void put4(int pos, int x) {
+		int oldpc = pc; pc = pos; put4(x); pc = oldpc;
+	}
+
+	public int get(int pos) {
+		return segs[pos >> segShift][pos & segMask];
+	}
+
+	private int get4(int pos) {
+		return (get(pos) << 24) | ((get(pos+1) & 0xff) << 16) | ((get(pos+2) & 0xff) << 8) | (get(pos+3) & 0xff);
+	}
+
+	// Overwrite the 4 bytes at pos (without put, which would resolve pending labels)
+	private void set4(int pos, int x) {
+		for (int i = 3; i >= 0; i--, x >>= 8) segs[(pos+i) >> segShift][(pos+i) & segMask] = (byte)x;
 	}
 
 	//----------------- instruction generation --------------
 
 	// Load the operand x to the expression stack
-	public static void load(Operand x) {
+	public void load(Operand x) {
 		switch (x.kind){
 			case Operand.Con:
 				if (0 <= x.val && x.val <= 5) put(const0+x.val);
-				else if (x.val == 1) put (const_m1);
-				else {put(const_); put(x.val);}
+				else if (x.val == -1) put (const_m1);
+				else {put(const_); put4(x.val);}
 				break;
 			
 			case Operand.Static:
@@ -135,60 +183,256 @@ public class Code {
 			
 			case Operand.Stack: break;
 
-			default: Parser.error("cannot load this value");
+			default: parser.error("cannot load this value");
 		}
 		x.kind = Operand.Stack;
 	}
 
+	// Load the constant x so that its code comes before the code generated
+	// since pos. That code is moved behind the constant. Its calls have
+	// absolute targets outside of it and stay as they are; the targets of its
+	// jumps (e.g. of an inlined call, see Inliner) are relocated, and all of
+	// them become wide if a 16-bit target could overflow.
+	public void loadBefore(Operand x, int pos) {
+		int end = pc;
+		byte[] b = new byte[end - pos];
+		int jumps = 0;
+		for (int i = 0; i < b.length; i++) b[i] = (byte)get(pos + i);
+		for (int i = 0; i < b.length; i += Peephole.length(b[i] & 0xff))
+			if (isJump(b[i] & 0xff)) jumps++;
+		pc = pos;
+		load(x);
+		int start = pc;
+		if (jumps == 0) {
+			for (int i = 0; i < b.length; i++) put(b[i]);
+			return;
+		}
+		boolean wide = start + b.length + 2 * jumps > maxShort;
+		int[] offset = new int[b.length + 1];	// new offsets by old offset
+		int len = 0;
+		for (int i = 0; i < b.length; ) {
+			int op = b[i] & 0xff, n = Peephole.length(op);
+			offset[i] = len;
+			len += wide && op >= jmp && op <= jge ? n + 2 : n;
+			i += n;
+		}
+		offset[b.length] = len;
+		for (int i = 0; i < b.length; ) {
+			int op = b[i] & 0xff, n = Peephole.length(op);
+			if (isJump(op)) {
+				int adr = op >= jmp_w
+					? (b[i+1] << 24) | ((b[i+2] & 0xff) << 16) | ((b[i+3] & 0xff) << 8) | (b[i+4] & 0xff)
+					: (b[i+1] << 8) | (b[i+2] & 0xff);
+				if (pos <= adr && adr <= end) adr = start + offset[adr - pos];
+				if (op >= jmp_w) {put(op); put4(adr);}
+				else if (wide) {put(op - jmp + jmp_w); put4(adr);}
+				else {put(op); put2(adr);}
+			} else
+				for (int k = 0; k < n; k++) put(b[i + k]);
+			i += n;
+		}
+	}
+
+	private static boolean isJump(int op) {
+		return op >= jmp && op <= jge || op >= jmp_w && op <= jge_w;
+	}
+
 	// Generate an assignment x = y; y has already been loaded
-	public static void assignTo(Operand x) {
-		int y = buf.length;
-		x.val = y;
+	public void assignTo(Operand x) {
+		switch (x.kind) {
+			case Operand.Local:
+				if (0 <= x.adr && x.adr <= 3) put(store0 + x.adr);
+				else {put(store); put(x.adr);}
+				break;
+			case Operand.Static:
+				put(putstatic); put2(x.adr); break;
+			case Operand.Fld:
+				put(putfield); put2(x.adr); break;
+			case Operand.Elem:
+				if (x.type == Tab.charType) put(bastore); else put(astore);
+				break;
+			default: parser.error("cannot assign to this value");
+		}
+	}
+
+	//------------- arithmetic ---------------
+
+	// Generate x op y (op is add, sub, mul, div or rem) and return the result.
+	// x is a constant or has been loaded; the code of y starts at mark.
+	// Constants are folded, and x+0, x-0, 0+x, 0-x, x*1, 1*x, x/1 and
+	// multiplications by a power of 2 (a shift) are simplified.
+	public Operand arith(int op, Operand x, Operand y, int mark) {
+		if (y.kind == Operand.Con) {
+			if ((op == div || op == rem) && y.val == 0) {
+				parser.error("division by zero");
+				return x;
+			}
+			if (x.kind == Operand.Con) {
+				switch (op) {
+					case add: x.val += y.val; break;
+					case sub: x.val -= y.val; break;
+					case mul: x.val *= y.val; break;
+					case div: x.val /= y.val; break;
+					default:  x.val %= y.val;
+				}
+				x.type = Tab.intType;
+				return x;
+			}
+			if (y.val == 0 && (op == add || op == sub) || y.val == 1 && (op == mul || op == div)) return x;
+			if (op == mul && y.val > 0 && (y.val & (y.val - 1)) == 0)
+				return shift(x, Integer.numberOfTrailingZeros(y.val));
+		} else if (x.kind == Operand.Con) {
+			if (x.val == 0 && op == add || x.val == 1 && op == mul) return y;
+			if (x.val == 0 && op == sub) {
+				load(y); put(neg);
+				return new Operand(Operand.Stack, 0, Tab.intType);
+			}
+			if (op == mul && x.val > 0 && (x.val & (x.val - 1)) == 0)
+				return shift(y, Integer.numberOfTrailingZeros(x.val));
+			if (pc > mark) loadBefore(x, mark); else load(x);
+		}
+		load(x); load(y); put(op);
+		return new Operand(Operand.Stack, 0, Tab.intType);
+	}
+
+	// x * 2^n
+	private Operand shift(Operand x, int n) {
+		load(x); load(new Operand(n)); put(shl);
+		return new Operand(Operand.Stack, 0, Tab.intType);
 	}
 
 	//------------- jumps ---------------
 
+	// Jumps and calls to adr < 0 are forward references that are patched
+	// later with fixup; they always use the wide form, because their target
+	// is not known yet. Each returns the address of its target operand.
+
+	// Put instruction op (or its wide form) with target adr
+	private int putTarget(int op, int wideOp, int adr) {
+		if (0 <= adr && adr <= maxShort) {
+			put(op); put2(adr);
+			return pc - 2;
+		}
+		put(wideOp); put4(adr);
+		return pc - 4;
+	}
+
 	// Unconditional jump
-	public static void putJump(int adr) {
-		put(jmp); put2(adr);
+	public int putJump(int adr) {
+		return putTarget(jmp, jmp_w, adr);
 	}
 
 	// Conditional jump if op is false
-	public static void putFalseJump(int op, int adr) {
-		put(jeq+inverse[op]); put2(adr);
+	public int putFalseJump(int op, int adr) {
+		return putTarget(jeq+inverse[op], jeq_w+inverse[op], adr);
+	}
+
+	// Call of the method at adr
+	public int putCall(int adr) {
+		return putTarget(call, call_w, adr);
 	}
 
 	// patch jump target at adr so that it jumps to the current pc
-	public static void fixup(int patchAdr) {
-		put2(patchAdr, pc);
+	public void fixup(int patchAdr) {
+		if (get(patchAdr - 1) >= jmp_w) put4(patchAdr, pc); else put2(patchAdr, pc);
+	}
+
+	//------------- labels ---------------
+
+	// Unconditional jump to l. The labels defined right before this jmp get
+	// l as their target instead, so that no jump leads to a jump.
+	public void jump(Label l) {
+		while (l.alias != null) l = l.alias;
+		Label p = pending, keep = null;
+		pending = null;
+		for (; p != null; p = p.nextPending) {
+			if (p == l) { keep = p; continue; }
+			if (l.adr >= 0) {
+				patch(p.chain, l.adr);
+				p.adr = l.adr;
+			} else if (p.chain >= 0) {	// append the chain of p to the chain of l
+				int last = p.chain;
+				while (get4(last) >= 0) last = get4(last);
+				set4(last, l.chain);
+				l.chain = p.chain;
+			}
+			p.chain = -1;
+			if (l.adr < 0) { p.adr = -1; p.alias = l; }
+		}
+		if (keep != null) { keep.nextPending = null; pending = keep; }
+		putTo(jmp, jmp_w, l);
+	}
+
+	// Conditional jump to l if op is false
+	public void falseJump(int op, Label l) {
+		while (l.alias != null) l = l.alias;
+		putTo(jeq+inverse[op], jeq_w+inverse[op], l);
+	}
+
+	private void putTo(int op, int wideOp, Label l) {
+		if (l.adr >= 0) putTarget(op, wideOp, l.adr);
+		else {
+			put(wideOp); put4(l.chain);
+			l.chain = pc - 4;
+		}
+	}
+
+	// Define l at pc. Its jumps are patched when the next instruction is put,
+	// so that a jmp right after the label can still take them over (see jump).
+	public void define(Label l) {
+		l.adr = pc;
+		l.nextPending = pending;
+		pending = l;
+	}
+
+	// Patch the jumps to all pending labels
+	private void resolve() {
+		for (Label p = pending; p != null; p = p.nextPending) {
+			patch(p.chain, p.adr);
+			p.chain = -1;
+		}
+		pending = null;
+	}
+
+	// Set the target of every jump in the chain starting at operand address link
+	private void patch(int link, int adr) {
+		while (link >= 0) {
+			int next = get4(link);
+			set4(link, adr);
+			link = next;
+		}
 	}
 
 	//------------------------------------
 
+	// Write the bytes from..to-1 of the code buffer to s
+	private void write(OutputStream s, int from, int to) throws IOException {
+		while (from < to) {
+			int n = Math.min(to - from, segSize - (from & segMask));
+			s.write(segs[from >> segShift], from & segMask, n);
+			from += n;
+		}
+	}
+
 	// Write the code buffer to the output stream
-	public static void write(OutputStream s) {
+	public void write(OutputStream s) {
 		int codeSize;
 		try {
 			codeSize = pc;
-			Decoder.decode(buf, 0, codeSize);
+			Decoder.decode(this, 0, codeSize, parser.out);
 			// append header to end of code area
 			put('M'); put('J');
 			put4(codeSize);
 			put4(dataSize);
 			put4(mainPc);
-			s.write(buf, codeSize, pc - codeSize);	// write header
-			s.write(buf, 0, codeSize);							// write code
+			write(s, codeSize, pc);	// write header
+			write(s, 0, codeSize);	// write code
+			pc = codeSize;
 			s.close();
 		} catch(IOException e) {
-			Parser.error("cannot write code file");
+			parser.error("cannot write code file");
 		}
 	}
-
-	// initialize code buffer
-	static {
-		buf = new byte[bufSize];
-		pc = 0; mainPc = -1;
-	}
 }
 
 
@@ -3,6 +3,8 @@
 */
 package MJ.CodeGen;
 
+import java.io.PrintStream;
+
 public class Decoder {
 
 	private static final int  // instruction codes
@@ -59,31 +61,44 @@ public class Decoder {
 		print       = 51,
 		bread       = 52,
 		bprint      = 53,
-		trap		    = 54;
+		trap		    = 54,
+		jmp_w       = 55,
+		jeq_w       = 56,
+		jne_w       = 57,
+		jlt_w       = 58,
+		jle_w       = 59,
+		jgt_w       = 60,
+		jge_w       = 61,
+		call_w      = 62;
 
-	private static byte[] code;		// code buffer
-	private static int cur;			// address of next byte to decode
-	private static int adr;			// address of currently decoded instruction
+	private Code code;		// code buffer
+	private int cur;			// address of next byte to decode
+	private int adr;			// address of currently decoded instruction
+	private PrintStream out;	// output of decode
 
-	private static int get() {
-		return ((int)code[cur++])<<24>>>24;
+	private int get() {
+		return code.get(cur++)<<24>>>24;
 	}
 
-	private static int get2() {
+	private int get2() {
 		return (get()*256 + get())<<16>>16;
 	}
 
-	private static int get4() {
+	private int get4() {
 		return (get2()<<16) + (get2()<<16>>>16);
 	}
 
-	private static void P(String s) {
-		System.out.println(adr+": "+s);
+	private void P(String s) {
+		out.println(adr+": "+s);
 		adr = cur;
 	}
 
-	public static void decode(byte[] c, int off, int len) {
-		int op;
+	public static void decode(Code c, int off, int len, PrintStream out) {
+		new Decoder().run(c, off, len, out);
+	}
+
+	private void run(Code c, int off, int len, PrintStream out) {
+		this.out = out;
 		code = c;
 		cur = off;
 		adr = cur;
@@ -143,6 +158,14 @@ public class Decoder {
 				case bread:     P("bread"); break;
 				case bprint:    P("bprint"); break;
 				case trap:      P("trap "+get()); break;
+				case jmp_w:     P("jmp_w "+get4()); break;
+				case jeq_w:     P("jeq_w "+get4()); break;
+				case jne_w:     P("jne_w "+get4()); break;
+				case jlt_w:     P("jlt_w "+get4()); break;
+				case jle_w:     P("jle_w "+get4()); break;
+				case jgt_w:     P("jgt_w "+get4()); break;
+				case jge_w:     P("jge_w "+get4()); break;
+				case call_w:    P("call_w "+get4()); break;
 				default:        P("-- error--"); break;
 			}
 		}
@@ -0,0 +1,130 @@
+/* MicroJava Inliner
+   =================
+Replaces a call by a copy of the callee's body if the callee is a small leaf
+method of this program: its body (without enter) has at most inlineSize bytes,
+and it contains no call, so it cannot be recursive. The arguments on the
+stack are stored into fresh locals of the caller; the callee's other locals
+are cleared as enter would do, unless the body starts by assigning them. In the copy, locals are renumbered to these
+slots, jumps are relocated, and every exit/return becomes a jump to the
+continuation (the last one falls through). The caller must make its frame
+large enough for the locals used (see Parser.MethodDecl).
+Set the size limit with -Dmj.inlineSize=<bytes> (default 32, 0 disables).
+*/
+package MJ.CodeGen;
+
+import MJ.SymTab.Obj;
+
+public class Inliner {
+	public static final int inlineSize = Integer.getInteger("mj.inlineSize", 32);
+	private static final int maxShort = 0x7FFF;	// largest target of a 16-bit jump
+
+	// Inline a call of meth, a method in the list globals, with its locals at
+	// base, base+1, ... of the caller's frame. Returns the number of locals
+	// used, or -1 if meth has to be called.
+	public static int inline(Code code, Obj meth, Obj globals, int base) {
+		int end = -1;
+		boolean found = false;
+		for (Obj o = globals; o != null && end < 0; o = o.next) {
+			if (found && o.kind == Obj.Meth) end = o.adr;
+			if (o == meth) found = true;
+		}
+		if (end < 0) return -1;	// not complete yet (recursion) or not in this program
+		int start = meth.adr + 3;
+		if (code.get(meth.adr) != Code.enter || end - start > inlineSize) return -1;
+		int nPars = code.get(meth.adr + 1) & 0xff, nVars = code.get(meth.adr + 2) & 0xff;
+		if (base + nVars > 255) return -1;
+
+		// compute the new offsets of the callee's instructions
+		boolean wide = code.pc + 5 * (end - start) + 4 * nVars > maxShort;	// safe bound on the copy
+		int jumpSize = wide ? 5 : 3;
+		int[] offset = new int[end - start + 1];	// by address - start
+		int len = 0;
+		boolean straight = true;	// still before the first jump or return
+		boolean[] used = new boolean[nVars], set = new boolean[nVars];	// set: stored before any load
+		for (int pos = start; pos < end; ) {
+			int op = code.get(pos), n = Peephole.length(op);
+			if (n == 0 || op == Code.call || op == Code.call_w || op == Code.enter) return -1;
+			offset[pos - start] = len;
+			if (straight && (isLoad(op) || isStore(op)) && slot(code, pos) < nVars) {
+				int v = slot(code, pos);
+				if (!used[v] && isStore(op)) set[v] = true;
+				used[v] = true;
+			}
+			if (isJump(op) || op == Code.exit) straight = false;
+			if (isJump(op)) {
+				int t = target(code, pos);
+				if (t < start || t > end) return -1;
+				len += jumpSize;
+			} else if (op == Code.exit) {
+				if (pos + 1 >= end || code.get(pos + 1) != Code.return_) return -1;
+			} else if (op == Code.return_) {
+				if (pos + 1 < end) len += jumpSize;
+			} else if (isLoad(op) || isStore(op)) {
+				len += base + slot(code, pos) < 4 ? 1 : 2;
+			} else len += n;
+			pos += n;
+		}
+		offset[end - start] = len;
+
+		// store the arguments, clear the other locals, copy the body
+		for (int p = nPars - 1; p >= 0; p--) store(code, base + p);
+		for (int v = nPars; v < nVars; v++)
+			if (!set[v]) { code.put(Code.const0); store(code, base + v); }
+		int copy = code.pc;
+		for (int pos = start; pos < end; ) {
+			int op = code.get(pos), n = Peephole.length(op);
+			if (isJump(op)) {
+				putJump(code, op >= Code.jmp_w ? op - Code.jmp_w + Code.jmp : op, copy + offset[target(code, pos) - start], wide);
+			} else if (op == Code.return_) {
+				if (pos + 1 < end) putJump(code, Code.jmp, copy + len, wide);
+			} else if (isLoad(op)) {
+				load(code, base + slot(code, pos));
+			} else if (isStore(op)) {
+				store(code, base + slot(code, pos));
+			} else if (op != Code.exit) {
+				for (int k = 0; k < n; k++) code.put(code.get(pos + k));
+			}
+			pos += n;
+		}
+		return nVars;
+	}
+
+	private static boolean isJump(int op) {
+		return op >= Code.jmp && op <= Code.jge || op >= Code.jmp_w && op <= Code.jge_w;
+	}
+
+	private static boolean isLoad(int op) {
+		return op == Code.load || op >= Code.load0 && op <= Code.load3;
+	}
+
+	private static boolean isStore(int op) {
+		return op == Code.store || op >= Code.store0 && op <= Code.store3;
+	}
+
+	// Slot of the load or store at pos
+	private static int slot(Code code, int pos) {
+		int op = code.get(pos);
+		if (op == Code.load || op == Code.store) return code.get(pos + 1) & 0xff;
+		return isLoad(op) ? op - Code.load0 : op - Code.store0;
+	}
+
+	// Target of the jump at pos
+	private static int target(Code code, int pos) {
+		if (code.get(pos) >= Code.jmp_w)
+			return (code.get(pos+1) << 24) | ((code.get(pos+2) & 0xff) << 16) | ((code.get(pos+3) & 0xff) << 8) | (code.get(pos+4) & 0xff);
+		return (code.get(pos+1) << 8) | (code.get(pos+2) & 0xff);
+	}
+
+	private static void putJump(Code code, int op, int adr, boolean wide) {
+		if (wide) { code.put(op - Code.jmp + Code.jmp_w); code.put4(adr); }
+		else { code.put(op); code.put2(adr); }
+	}
+
+	private static void load(Code code, int slot) {
+		if (slot < 4) code.put(Code.load0 + slot); else { code.put(Code.load); code.put(slot); }
+	}
+
+	private static void store(Code code, int slot) {
+		if (slot < 4) code.put(Code.store0 + slot); else { code.put(Code.store); code.put(slot); }
+	}
+}
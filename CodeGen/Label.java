@@ -0,0 +1,26 @@
+/* MicroJava Jump Labels
+   =====================
+A Label is a jump target in the code buffer. Jumps to a label that is not
+defined yet are put in the wide form and chained through their operands:
+each operand holds the operand address of the previous jump to the label
+(-1 ends the chain). When the label is defined, the whole chain is patched
+in one pass (see Code.define).
+*/
+package MJ.CodeGen;
+
+public class Label {
+	private final Code code;
+	int   adr = -1;		// address of the label, or -1 while undefined
+	int   chain = -1;	// operand address of the last unpatched jump to the label
+	Label alias;		// label that took over the jumps of this one (see Code.jump)
+	Label nextPending;	// next label in Code.pending
+
+	public Label(Code code) {
+		this.code = code;
+	}
+
+	// Define the label at the current pc
+	public void here() {
+		code.define(this);
+	}
+}
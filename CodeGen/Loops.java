@@ -0,0 +1,403 @@
+/* MicroJava Loop Optimizer
+   ========================
+Works on the code of a method body before Peephole. A loop consists of the
+instructions from the target of a backward jump (its top) up to the last jump
+back there; loops that can be entered elsewhere than at the top are skipped.
+Inner loops are done first. Each loop gets a preheader before its top that
+runs once whenever the loop is entered; jumps from outside go there.
+- Invariant expressions are computed in the preheader into new locals, and
+  replaced by loads of these. They are built from constants, locals not stored
+  in the loop, statics and fields that the loop stores neither directly nor
+  through a call, with add, sub, mul, div, rem, neg, shl, shr, getfield and
+  arraylength, and consist of at least 2 instructions. Expressions that can
+  trap (div, rem, getfield, arraylength) are only taken from the start of the
+  loop, up to the first jump, which runs on every entry anyway, and only if
+  nothing before them there can trap or has an effect.
+- Strength reduction: if a local i is only changed by i = i + k in the loop,
+  a product i*c (mul or shl by a constant) is kept in a new local, set in the
+  preheader and increased by k*c after every increment of i, and its uses
+  become loads. This is done if it saves instructions (a use saves 2, an
+  update costs 4).
+The new locals follow the slot base. Jumps get the long form only if the body
+may reach beyond 32K; Peephole shortens them later.
+Disable with -Dmj.noLoopOpt=true.
+*/
+package MJ.CodeGen;
+
+import java.util.*;
+
+public class Loops {
+	public static final boolean enabled = !Boolean.getBoolean("mj.noLoopOpt");
+	private static final int maxShort = 0x7FFF;	// largest target of a 16-bit jump
+
+	private static class Insn {
+		int op;		// load, store, const_ and jumps stand for all their forms
+		int val;	// load/store: slot; const_: value; others: operand
+		Insn tgt;	// jumps: target (end: end of the body)
+		int idx;	// index in list (after number())
+		int adr;	// address (in emit())
+
+		Insn(int op, int val) { this.op = op; this.val = val; }
+	}
+
+	// An expression on the simulated stack: instructions start..start+len-1
+	private static class Value {
+		int start, len;
+		boolean inv;	// loop invariant
+		boolean traps;	// may trap
+
+		Value(int start, int len, boolean inv, boolean traps) {
+			this.start = start; this.len = len; this.inv = inv; this.traps = traps;
+		}
+	}
+	private static final Value unknown = new Value(0, 0, false, false);
+
+	private Code code;
+	private List<Insn> list = new ArrayList<>();
+	private final Insn end = new Insn(-1, 0);	// target of jumps to the end of the body
+	private int base, nTemps;	// slot of the first new local, number of new locals
+
+	// loop being optimized (see optimizeLoop)
+	private int h, j, prefix;	// top, last back jump, end of the part that runs on every entry
+	private boolean[] target;	// instruction is a jump target
+	private final Set<Integer> stored = new HashSet<>(), putStatics = new HashSet<>(), putFields = new HashSet<>();
+	private boolean calls;
+	private final Deque<Value> stack = new ArrayDeque<>();
+	private final List<Value> hoist = new ArrayList<>();
+	private boolean[] hoisted;
+
+	// Optimize the loops of the method body from start to code.pc, using new
+	// locals from slot base on; returns the number of new locals
+	public static int optimize(Code code, int start, int base) {
+		if (!enabled) return 0;
+		return new Loops().run(code, start, base);
+	}
+
+	private int run(Code code, int start, int base) {
+		this.code = code; this.base = base;
+		if (!decode(start, code.pc)) return 0;
+		Set<Insn> done = Collections.newSetFromMap(new IdentityHashMap<>());	// tops of loops handled
+		boolean changed = false;
+		for (;;) {
+			number();
+			int n = list.size();
+			int[] last = new int[n];	// by top: last back jump, or -1
+			Arrays.fill(last, -1);
+			for (Insn x: list)
+				if (isJump(x.op) && x.tgt.idx <= x.idx && !done.contains(x.tgt)) last[x.tgt.idx] = x.idx;
+			int top = -1;
+			for (int i = 0; i < n; i++)
+				if (last[i] >= 0 && (top < 0 || last[i] - i < last[top] - top)) top = i;
+			if (top < 0) break;
+			done.add(list.get(top));
+			changed |= optimizeLoop(top, last[top]);
+		}
+		if (!changed) return 0;
+		emit(start);
+		return nTemps;
+	}
+
+	//---------------- decoding ----------------
+
+	private boolean decode(int start, int end) {
+		Map<Integer, Insn> at = new HashMap<>();
+		for (int pos = start; pos < end; ) {
+			int op = code.get(pos), n = Peephole.length(op);
+			if (n == 0) return false;
+			Insn x;
+			if (op >= Code.load0 && op <= Code.load3) x = new Insn(Code.load, op - Code.load0);
+			else if (op >= Code.store0 && op <= Code.store3) x = new Insn(Code.store, op - Code.store0);
+			else if (op >= Code.const0 && op <= Code.const5) x = new Insn(Code.const_, op - Code.const0);
+			else if (op == Code.const_m1) x = new Insn(Code.const_, -1);
+			else if (op == Code.load || op == Code.store) x = new Insn(op, code.get(pos + 1) & 0xff);
+			else if (op >= Code.jmp_w && op <= Code.jge_w) x = new Insn(op - Code.jmp_w + Code.jmp, get4(pos + 1));
+			else if (n == 2) x = new Insn(op, code.get(pos + 1));
+			else if (n == 3) x = new Insn(op, get2(pos + 1));
+			else if (n == 5) x = new Insn(op, get4(pos + 1));
+			else x = new Insn(op, 0);
+			at.put(pos, x);
+			list.add(x);
+			pos += n;
+		}
+		for (Insn x: list)
+			if (isJump(x.op)) {
+				x.tgt = x.val == end ? this.end : at.get(x.val);
+				if (x.tgt == null) return false;	// outside the body or not patched yet
+			}
+		return true;
+	}
+
+	private int get2(int pos) {
+		return (code.get(pos) << 8) | (code.get(pos + 1) & 0xff);
+	}
+
+	private int get4(int pos) {
+		return (get2(pos) << 16) | (get2(pos + 2) & 0xffff);
+	}
+
+	private void number() {
+		for (int i = 0; i < list.size(); i++) list.get(i).idx = i;
+		end.idx = list.size();
+	}
+
+	private static boolean isJump(int op) {
+		return op >= Code.jmp && op <= Code.jge;
+	}
+
+	//---------------- loops ----------------
+
+	// Optimize the loop from h to j; returns true if the code was changed
+	private boolean optimizeLoop(int h, int j) {
+		this.h = h; this.j = j;
+		int n = list.size();
+		target = new boolean[n + 1];
+		for (Insn x: list)
+			if (isJump(x.op)) {
+				target[x.tgt.idx] = true;
+				if ((x.idx < h || x.idx > j) && x.tgt.idx > h && x.tgt.idx <= j) return false;	// second entry
+			}
+		stored.clear(); putStatics.clear(); putFields.clear(); calls = false;
+		prefix = -1;
+		for (int i = h; i <= j; i++) {
+			Insn x = list.get(i);
+			switch (x.op) {
+				case Code.store: stored.add(x.val); break;
+				case Code.putstatic: putStatics.add(x.val); break;
+				case Code.putfield: putFields.add(x.val); break;
+				case Code.call: case Code.call_w: calls = true; break;
+			}
+			if (prefix < 0 && (isJump(x.op) || x.op == Code.exit || x.op == Code.return_ || x.op == Code.trap)) prefix = i;
+		}
+
+		// find invariant expressions
+		hoist.clear();
+		hoisted = new boolean[n];
+		stack.clear();
+		for (int i = h; i <= j; i++) {
+			if (target[i]) flush();
+			simulate(i);
+		}
+		flush();
+
+		// find products of induction variables
+		Map<Integer, List<Insn>> incs = new HashMap<>();	// slot -> its increments (the stores)
+		Map<Insn, Integer> inc = new IdentityHashMap<>();	// store -> increment
+		Set<Integer> other = new HashSet<>();	// slots stored otherwise
+		for (int i = h; i <= j; i++) {
+			Insn x = list.get(i);
+			if (x.op == Code.store) {
+				Integer k = increment(i);
+				if (k == null) other.add(x.val);
+				else { incs.computeIfAbsent(x.val, s -> new ArrayList<>()).add(x); inc.put(x, k); }
+			}
+		}
+		Map<List<Integer>, List<Integer>> uses = new LinkedHashMap<>();	// (slot, op, c) -> first instructions
+		for (int i = h; i + 2 <= j; i++) {
+			List<Integer> p = product(i);
+			if (p != null && incs.containsKey(p.get(0)) && !other.contains(p.get(0)))
+				uses.computeIfAbsent(p, k -> new ArrayList<>()).add(i);
+		}
+
+		// rewrite
+		List<Insn> pre = new ArrayList<>();
+		boolean[] removed = new boolean[n];
+		Map<Insn, List<Insn>> after = new IdentityHashMap<>();
+		Map<String, Integer> temps = new HashMap<>();
+		hoist.sort((a, b) -> a.start - b.start);
+		for (Value v: hoist) {
+			StringBuilder key = new StringBuilder();
+			for (int k = v.start; k < v.start + v.len; k++) key.append(list.get(k).op).append(':').append(list.get(k).val).append(' ');
+			Integer t = temps.get(key.toString());
+			if (t == null) {
+				t = newTemp();
+				if (t < 0) continue;
+				temps.put(key.toString(), t);
+				for (int k = v.start; k < v.start + v.len; k++) pre.add(new Insn(list.get(k).op, list.get(k).val));
+				pre.add(new Insn(Code.store, t));
+			}
+			replace(v.start, v.len, t, removed);
+		}
+		for (Map.Entry<List<Integer>, List<Integer>> e: uses.entrySet()) {
+			int slot = e.getKey().get(0), op = e.getKey().get(1), c = e.getKey().get(2);
+			List<Insn> upd = incs.get(slot);
+			if (2 * e.getValue().size() <= 4 * upd.size()) continue;	// not worth it
+			int t = newTemp();
+			if (t < 0) continue;
+			pre.add(new Insn(Code.load, slot));
+			pre.add(new Insn(Code.const_, c));
+			pre.add(new Insn(op, 0));
+			pre.add(new Insn(Code.store, t));
+			int factor = op == Code.mul ? c : 1 << c;
+			for (Insn st: upd) {
+				List<Insn> a = after.computeIfAbsent(st, k -> new ArrayList<>());
+				a.add(new Insn(Code.load, t));
+				a.add(new Insn(Code.const_, inc.get(st) * factor));
+				a.add(new Insn(Code.add, 0));
+				a.add(new Insn(Code.store, t));
+			}
+			for (int i: e.getValue()) replace(i, 3, t, removed);
+		}
+		if (pre.isEmpty()) return false;
+
+		Insn top = list.get(h);
+		for (Insn x: list)
+			if (isJump(x.op) && x.tgt == top && (x.idx < h || x.idx > j)) x.tgt = pre.get(0);
+		List<Insn> out = new ArrayList<>(n + pre.size());
+		for (int i = 0; i < n; i++) {
+			if (i == h) out.addAll(pre);
+			if (removed[i]) continue;
+			Insn x = list.get(i);
+			out.add(x);
+			if (after.containsKey(x)) out.addAll(after.get(x));
+		}
+		list = out;
+		return true;
+	}
+
+	private int newTemp() {
+		if (base + nTemps >= 255) return -1;
+		return base + nTemps++;
+	}
+
+	// Replace the len instructions at i by a load of slot t (the first one is
+	// kept, since jumps may lead to it)
+	private void replace(int i, int len, int t, boolean[] removed) {
+		Insn x = list.get(i);
+		x.op = Code.load; x.val = t; x.tgt = null;
+		for (int k = i + 1; k < i + len; k++) removed[k] = true;
+	}
+
+	// Increment k if the store at i ends slot = slot + k or slot = slot - k
+	// (no jump leads into the middle), else null
+	private Integer increment(int i) {
+		if (i - 3 < h || target[i - 2] || target[i - 1] || target[i]) return null;
+		Insn a = list.get(i - 3), b = list.get(i - 2), op = list.get(i - 1);
+		int slot = list.get(i).val;
+		if (op.op == Code.add && a.op == Code.load && a.val == slot && b.op == Code.const_) return b.val;
+		if (op.op == Code.add && b.op == Code.load && b.val == slot && a.op == Code.const_) return a.val;
+		if (op.op == Code.sub && a.op == Code.load && a.val == slot && b.op == Code.const_) return -b.val;
+		return null;
+	}
+
+	// (slot, op, c) if the instructions at i compute slot*c or slot<<c, else null
+	private List<Integer> product(int i) {
+		if (target[i + 1] || target[i + 2]) return null;
+		Insn a = list.get(i), b = list.get(i + 1), op = list.get(i + 2);
+		if (op.op == Code.mul && a.op == Code.load && b.op == Code.const_) return Arrays.asList(a.val, Code.mul, b.val);
+		if (op.op == Code.shl && a.op == Code.load && b.op == Code.const_) return Arrays.asList(a.val, Code.shl, b.val);
+		return null;
+	}
+
+	//---------------- invariant expressions ----------------
+
+	private Value pop() {
+		return stack.isEmpty() ? unknown : stack.pop();
+	}
+
+	// Simulate the effect of instruction i on the stack
+	private void simulate(int i) {
+		Insn x = list.get(i);
+		switch (x.op) {
+			case Code.load:
+				stack.push(new Value(i, 1, !stored.contains(x.val), false)); break;
+			case Code.const_:
+				stack.push(new Value(i, 1, true, false)); break;
+			case Code.getstatic:
+				stack.push(new Value(i, 1, !calls && !putStatics.contains(x.val), false)); break;
+			case Code.neg: case Code.arraylength: case Code.getfield: {
+				Value a = pop();
+				boolean inv = a.inv && a.start + a.len == i && (x.op != Code.getfield || !calls && !putFields.contains(x.val));
+				if (inv) stack.push(new Value(a.start, a.len + 1, true, a.traps || x.op != Code.neg));
+				else { done(a); stack.push(unknown); }
+				break;
+			}
+			case Code.add: case Code.sub: case Code.mul: case Code.div: case Code.rem: case Code.shl: case Code.shr: {
+				Value b = pop(), a = pop();
+				boolean inv = a.inv && b.inv && a.start + a.len == b.start && b.start + b.len == i;
+				if (inv) stack.push(new Value(a.start, a.len + b.len + 1, true, a.traps || b.traps || x.op == Code.div || x.op == Code.rem));
+				else { done(a); done(b); stack.push(unknown); }
+				break;
+			}
+			case Code.store: case Code.putstatic: case Code.pop:
+				done(pop()); break;
+			case Code.putfield: case Code.print: case Code.bprint:
+				done(pop()); done(pop()); break;
+			case Code.astore: case Code.bastore:
+				done(pop()); done(pop()); done(pop()); break;
+			case Code.newarray:
+				done(pop()); stack.push(unknown); break;
+			case Code.aload: case Code.baload:
+				done(pop()); done(pop()); stack.push(unknown); break;
+			case Code.new_: case Code.read: case Code.bread:
+				stack.push(unknown); break;
+			default:	// jumps, calls, exit, return, trap
+				flush();
+		}
+	}
+
+	private void flush() {
+		while (!stack.isEmpty()) done(stack.pop());
+	}
+
+	// The value v is used by a non-invariant instruction: hoist it if possible
+	private void done(Value v) {
+		if (!v.inv || v.len < 2) return;
+		if (v.traps) {
+			if (prefix < 0 || v.start + v.len > prefix) return;
+			for (int k = h; k < v.start; k++)
+				if (!hoisted[k] && !quiet(list.get(k).op)) return;
+		}
+		for (int k = v.start; k < v.start + v.len; k++) hoisted[k] = true;
+		hoist.add(v);
+	}
+
+	// Instructions without effects that cannot trap
+	private static boolean quiet(int op) {
+		switch (op) {
+			case Code.load: case Code.store: case Code.const_: case Code.getstatic: case Code.pop:
+			case Code.add: case Code.sub: case Code.mul: case Code.neg: case Code.shl: case Code.shr:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	//---------------- emission ----------------
+
+	private int size(Insn x, int jumpSize) {
+		if (isJump(x.op)) return jumpSize;
+		if (x.op == Code.load || x.op == Code.store) return x.val < 4 ? 1 : 2;
+		if (x.op == Code.const_) return x.val >= -1 && x.val <= 5 ? 1 : 5;
+		return Peephole.length(x.op);
+	}
+
+	private void emit(int start) {
+		int bound = start;
+		for (Insn x: list) bound += size(x, 5);
+		int jumpSize = bound > maxShort ? 5 : 3;
+		int pc = start;
+		for (Insn x: list) { x.adr = pc; pc += size(x, jumpSize); }
+		end.adr = pc;
+		code.pc = start;
+		for (Insn x: list) {
+			if (isJump(x.op)) {
+				if (jumpSize == 5) { code.put(x.op - Code.jmp + Code.jmp_w); code.put4(x.tgt.adr); }
+				else { code.put(x.op); code.put2(x.tgt.adr); }
+			} else if (x.op == Code.load || x.op == Code.store) {
+				if (x.val < 4) code.put((x.op == Code.load ? Code.load0 : Code.store0) + x.val);
+				else { code.put(x.op); code.put(x.val); }
+			} else if (x.op == Code.const_) {
+				if (x.val == -1) code.put(Code.const_m1);
+				else if (x.val >= 0 && x.val <= 5) code.put(Code.const0 + x.val);
+				else { code.put(Code.const_); code.put4(x.val); }
+			} else {
+				code.put(x.op);
+				switch (Peephole.length(x.op)) {
+					case 2: code.put(x.val); break;
+					case 3: code.put2(x.val); break;
+					case 5: code.put4(x.val); break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/* MicroJava Peephole Optimizer
+   ============================
+Rewrites the code of one method body (between its enter instruction and the
+end of the code buffer, including the final exit/return) in place:
+- instructions that cannot be reached from the start of the body (e.g. after
+  return, or the trap at the end of a function whose paths all return) are
+  removed,
+- jumps to jmp instructions are redirected to the final target,
+- a jmp to the next instruction is removed,
+- pairs without effect are removed: load x; store x (same slot or static),
+  const 0; add|sub|shl|shr, const 1; mul|div, neg; neg, and a pushed value
+  that is popped again.
+A pair is only removed if no jump leads to its second instruction.
+Then the locals that are not parameters are renumbered by use count, weighted
+by loop depth (loops are the ranges of backward jumps), so that the most used
+ones get the slots 0..3 with 1-byte load/store forms; Obj.adr of the locals
+is updated, and the frame size does not change.
+The code is then laid out again: jump targets inside the body are adjusted,
+and jumps get the short form wherever their target fits 16 bits. Code before
+the body does not move, so method addresses and mainPc stay valid. Bodies that still
+contain forward references (see Code.fixup and Label) are left alone, because
+their patch addresses would move.
+*/
+package MJ.CodeGen;
+
+import java.util.Arrays;
+import MJ.SymTab.Obj;
+
+public class Peephole {
+	private static final int maxShort = 0x7FFF;	// largest target of a 16-bit jump
+
+	private Code code;
+	private int start, end;	// body is start..end-1
+	private int n;			// number of instructions
+	private int[] adr;		// original address of instruction i
+	private int[] op;		// opcode (jumps: the short form)
+	private int[] val;		// const: value; load/store: slot; get/putstatic: address
+	private int[] tgt;		// jumps: index of target instruction (n = end of body), or -1 if outside
+	private int[] ext;		// jumps with tgt < 0: target address
+	private boolean[] wide;	// jumps: wide form
+	private boolean[] dead;	// instruction is removed
+	private boolean[] isTarget;	// a live jump leads to this instruction
+	private int[] newAdr;	// address after the layout (index n: new end)
+
+	// Optimize the code of method meth from start to code.pc;
+	// returns the number of bytes saved
+	public static int optimize(Code code, int start, Obj meth) {
+		return new Peephole().run(code, start, meth);
+	}
+
+	private int run(Code code, int start, Obj meth) {
+		this.code = code; this.start = start; this.end = code.pc;
+		if (!decode()) return 0;
+		boolean changed;
+		do {
+			changed = removeUnreachable();
+			markTargets();
+			for (int i = live(0); i < n; i = live(i + 1)) {
+				if (isJump(op[i])) changed |= shortenChain(i);
+				int j = live(i + 1);
+				if (op[i] == Code.jmp && tgt[i] >= 0 && live(tgt[i]) == j) {
+					dead[i] = true; changed = true;
+				} else if (j < n && !isTarget[j] && cancels(i, j)) {
+					dead[i] = dead[j] = true; changed = true;
+				}
+			}
+		} while (changed);
+		renumber(meth);
+		layout();
+		emit();
+		return end - code.pc;
+	}
+
+	//---------------- decoding ----------------
+
+	private int get2(int pos) {
+		return (code.get(pos) << 8) | (code.get(pos + 1) & 0xff);
+	}
+
+	private int get4(int pos) {
+		return (get2(pos) << 16) | (get2(pos + 2) & 0xffff);
+	}
+
+	private static boolean isJump(int op) {
+		return op >= Code.jmp && op <= Code.jge;
+	}
+
+	// Length of the instruction with opcode op, or 0 if op is unknown
+	public static int length(int op) {
+		switch (op) {
+			case Code.load: case Code.store: case Code.newarray: case Code.trap:
+				return 2;
+			case Code.getstatic: case Code.putstatic: case Code.getfield: case Code.putfield:
+			case Code.new_: case Code.call: case Code.enter:
+			case Code.jmp: case Code.jeq: case Code.jne: case Code.jlt: case Code.jle: case Code.jgt: case Code.jge:
+				return 3;
+			case Code.const_: case Code.call_w:
+			case Code.jmp_w: case Code.jeq_w: case Code.jne_w: case Code.jlt_w: case Code.jle_w: case Code.jgt_w: case Code.jge_w:
+				return 5;
+			default:
+				return op >= Code.load && op <= Code.trap ? 1 : 0;
+		}
+	}
+
+	// Split the body into instructions; false if it cannot be decoded
+	// or contains an unpatched forward reference
+	private boolean decode() {
+		int max = end - start;
+		adr = new int[max]; op = new int[max]; val = new int[max];
+		tgt = new int[max]; ext = new int[max]; wide = new boolean[max];
+		int[] index = new int[max + 1];	// address - start -> instruction, or -1
+		Arrays.fill(index, -1);
+		for (int pos = start; pos < end; n++) {
+			int o = code.get(pos), len = length(o);
+			if (len == 0 || pos + len > end) return false;
+			if (o == Code.call_w && get4(pos + 1) < 0) return false;
+			index[pos - start] = n;
+			adr[n] = pos;
+			if (o >= Code.jmp_w && o <= Code.jge_w) {
+				op[n] = o - Code.jmp_w + Code.jmp; wide[n] = true;
+				ext[n] = get4(pos + 1);
+				if (ext[n] < 0) return false;
+			} else {
+				op[n] = o;
+				if (isJump(o)) ext[n] = get2(pos + 1);
+			}
+			if (o >= Code.load0 && o <= Code.load3) val[n] = o - Code.load0;
+			else if (o >= Code.store0 && o <= Code.store3) val[n] = o - Code.store0;
+			else if (o >= Code.const0 && o <= Code.const5) val[n] = o - Code.const0;
+			else if (o == Code.const_m1) val[n] = -1;
+			else if (o == Code.const_) val[n] = get4(pos + 1);
+			else if (o == Code.load || o == Code.store) val[n] = code.get(pos + 1) & 0xff;
+			else if (o == Code.getstatic || o == Code.putstatic) val[n] = get2(pos + 1);
+			pos += len;
+		}
+		index[max] = n;
+		for (int i = 0; i < n; i++) {
+			tgt[i] = -1;
+			if (isJump(op[i]) && ext[i] >= start && ext[i] <= end) tgt[i] = index[ext[i] - start];
+		}
+		dead = new boolean[n]; isTarget = new boolean[n + 1]; newAdr = new int[n + 1];
+		return true;
+	}
+
+	//---------------- patterns ----------------
+
+	// Mark the instructions that no path from the body start reaches as dead
+	private boolean removeUnreachable() {
+		boolean[] reached = new boolean[n + 1];
+		int[] work = new int[n + 1];
+		int w = 0;
+		reached[live(0)] = true; work[w++] = live(0);
+		while (w > 0) {
+			int i = work[--w];
+			if (i == n) continue;
+			int[] succ = {-1, -1};
+			if (op[i] != Code.jmp && op[i] != Code.return_ && op[i] != Code.trap) succ[0] = live(i + 1);
+			if (isJump(op[i]) && tgt[i] >= 0) succ[1] = live(tgt[i]);
+			for (int j: succ)
+				if (j >= 0 && !reached[j]) { reached[j] = true; work[w++] = j; }
+		}
+		boolean changed = false;
+		for (int i = 0; i < n; i++)
+			if (!dead[i] && !reached[i]) { dead[i] = true; changed = true; }
+		return changed;
+	}
+
+	// First live instruction at or after i (n if there is none)
+	private int live(int i) {
+		while (i < n && dead[i]) i++;
+		return i;
+	}
+
+	private void markTargets() {
+		Arrays.fill(isTarget, false);
+		for (int i = 0; i < n; i++)
+			if (!dead[i] && isJump(op[i]) && tgt[i] >= 0) isTarget[live(tgt[i])] = true;
+	}
+
+	// Redirect jump i past jmp instructions at its target
+	private boolean shortenChain(int i) {
+		int t = tgt[i], e = ext[i];
+		for (int steps = 0; tgt[i] >= 0 && steps < n; steps++) {	// steps: jmp cycles
+			int j = live(tgt[i]);
+			if (j == n || op[j] != Code.jmp || j == i) break;
+			if (tgt[j] < 0) { tgt[i] = -1; ext[i] = ext[j]; } else tgt[i] = tgt[j];
+		}
+		if (tgt[i] >= 0) isTarget[live(tgt[i])] = true;	// new target within this pass
+		return tgt[i] != t || ext[i] != e;
+	}
+
+	private boolean isLoad(int o) {
+		return o == Code.load || o >= Code.load0 && o <= Code.load3;
+	}
+
+	private boolean isStore(int o) {
+		return o == Code.store || o >= Code.store0 && o <= Code.store3;
+	}
+
+	private boolean isConst(int o) {
+		return o >= Code.const0 && o <= Code.const_;
+	}
+
+	// Instructions i and j together have no effect
+	private boolean cancels(int i, int j) {
+		int a = op[i], b = op[j];
+		if (isLoad(a) && isStore(b)) return val[i] == val[j];
+		if (a == Code.getstatic && b == Code.putstatic) return val[i] == val[j];
+		if (isConst(a)) {
+			if (val[i] == 0 && (b == Code.add || b == Code.sub || b == Code.shl || b == Code.shr)) return true;
+			if (val[i] == 1 && (b == Code.mul || b == Code.div)) return true;
+		}
+		if (a == Code.neg && b == Code.neg) return true;
+		return b == Code.pop && (isLoad(a) || isConst(a) || a == Code.getstatic);
+	}
+
+	//---------------- local slots ----------------
+
+	private void renumber(Obj meth) {
+		int nPars = meth.nPars, nVars = 0;
+		for (Obj o = meth.locals; o != null; o = o.next)
+			if (o.kind == Obj.Var) nVars++;
+		if (nPars >= 4 || nVars <= nPars) return;	// no short slot to give away
+		int[] loops = new int[n + 1];	// +1 where a loop starts, -1 after it ends
+		for (int i = 0; i < n; i++)
+			if (!dead[i] && isJump(op[i]) && tgt[i] >= 0 && tgt[i] <= i) { loops[tgt[i]]++; loops[i + 1]--; }
+		long[] weight = new long[nVars];
+		for (int i = 0, depth = 0; i < n; i++) {
+			depth += loops[i];
+			if (!dead[i] && (isLoad(op[i]) || isStore(op[i])) && val[i] < nVars)
+				weight[val[i]] += 1L << 3 * Math.min(depth, 16);	// a loop counts 8 times
+		}
+		Integer[] order = new Integer[nVars - nPars];
+		for (int k = 0; k < order.length; k++) order[k] = nPars + k;
+		Arrays.sort(order, (a, b) -> Long.compare(weight[b], weight[a]));	// stable: ties keep declaration order
+		int[] slot = new int[nVars];
+		for (int k = 0; k < nPars; k++) slot[k] = k;
+		for (int k = 0; k < order.length; k++) slot[order[k]] = nPars + k;
+		for (int i = 0; i < n; i++)
+			if (!dead[i] && (isLoad(op[i]) || isStore(op[i])) && val[i] < nVars) val[i] = slot[val[i]];
+		for (Obj o = meth.locals; o != null; o = o.next)
+			if (o.kind == Obj.Var && o.adr < nVars) o.adr = slot[o.adr];
+	}
+
+	//---------------- layout and emission ----------------
+
+	private int target(int i) {
+		return tgt[i] < 0 ? ext[i] : newAdr[live(tgt[i])];
+	}
+
+	// Length of instruction i in the new layout
+	private int size(int i) {
+		if (isJump(op[i])) return wide[i] ? 5 : 3;
+		if (isLoad(op[i]) || isStore(op[i])) return val[i] < 4 ? 1 : 2;
+		return length(op[i]);
+	}
+
+	// Assign new addresses. All jumps start short; those whose target does not
+	// fit 16 bits are widened until the layout is stable (targets only grow).
+	private void layout() {
+		Arrays.fill(wide, false);
+		boolean changed;
+		do {
+			int pos = start;
+			for (int i = 0; i < n; i++) {
+				newAdr[i] = pos;
+				if (!dead[i]) pos += size(i);
+			}
+			newAdr[n] = pos;
+			changed = false;
+			for (int i = 0; i < n; i++)
+				if (!dead[i] && isJump(op[i]) && !wide[i] && target(i) > maxShort) {
+					wide[i] = true; changed = true;
+				}
+		} while (changed);
+	}
+
+	// Rewrite the body (built separately, since instructions may move up)
+	private void emit() {
+		byte[] b = new byte[newAdr[n] - start];
+		int p = 0;
+		for (int i = 0; i < n; i++) {
+			if (dead[i]) continue;
+			int x = op[i];
+			if (isJump(x)) {
+				int t = target(i);
+				if (wide[i]) {
+					b[p++] = (byte)(x - Code.jmp + Code.jmp_w);
+					b[p++] = (byte)(t >> 24); b[p++] = (byte)(t >> 16);
+				} else b[p++] = (byte)x;
+				b[p++] = (byte)(t >> 8); b[p++] = (byte)t;
+			} else if (isLoad(x) || isStore(x)) {
+				int base = isLoad(x) ? Code.load0 : Code.store0;
+				if (val[i] < 4) b[p++] = (byte)(base + val[i]);
+				else { b[p++] = (byte)(isLoad(x) ? Code.load : Code.store); b[p++] = (byte)val[i]; }
+			} else {
+				for (int k = 0; k < length(x); k++) b[p++] = (byte)code.get(adr[i] + k);
+			}
+		}
+		code.pc = start;
+		for (byte y: b) code.put(y);
+	}
+}
@@ -0,0 +1,192 @@
+package MJ;
+/* MicroJava Compilation Cache
+   ===========================
+   An on-disk cache of object files, keyed by the SHA-256 of the compiler's
+   own class files (all of them below MJ/ where this class was loaded from,
+   a directory or a jar file), the settings that change code generation (mj.ir, the
+   inliner's size limit and whether the loop pass runs) and the source bytes.
+   On a hit the cached object file is hard-linked (or copied) to the output
+   without scanning or parsing.
+   Several processes may share one cache directory:
+   - entries are written to a temporary file and renamed into place atomically;
+   - outputs are created under a temporary name and renamed over the target;
+   - a hit refreshes the entry's modification time, and evict() deletes the
+     least recently used entries once the directory exceeds its size cap.
+   Enable with -Dmj.cache=<dir> [-Dmj.cacheSize=<bytes>, default 256 MB].
+*/
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import MJ.CodeGen.Inliner;
+import MJ.CodeGen.Loops;
+
+public class CompileCache {
+	private static final String[] codeOptions = {"mj.ir"};	// change the object code
+
+	private final Path dir;			// cache directory
+	private final long maxSize;		// size cap in bytes
+	private final byte[] version;	// digest of the compiler's class files
+	public final AtomicInteger hits = new AtomicInteger();
+	public final AtomicInteger misses = new AtomicInteger();
+
+	public CompileCache(Path dir, long maxSize) throws IOException {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		Files.createDirectories(dir);
+		MessageDigest md = sha256();
+		hashClasses(md);
+		for (String o: codeOptions) md.update((o + "=" + System.getProperty(o) + "\n").getBytes(StandardCharsets.UTF_8));
+		md.update(("inlineSize=" + Inliner.inlineSize + "\n").getBytes(StandardCharsets.UTF_8));
+		md.update(("loops=" + Loops.enabled + "\n").getBytes(StandardCharsets.UTF_8));
+		version = md.digest();
+	}
+
+	// Cache configured by the system properties mj.cache and mj.cacheSize, or null
+	public static CompileCache fromProperties() {
+		String d = System.getProperty("mj.cache");
+		if (d == null) return null;
+		try {
+			return new CompileCache(Paths.get(d), Long.getLong("mj.cacheSize", 256L << 20));
+		} catch (IOException e) {
+			System.out.println("-- cannot use cache directory " + d + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Add the names and contents of all class files below MJ/ in the directory
+	// or jar file that this class was loaded from
+	private static void hashClasses(MessageDigest md) throws IOException {
+		CodeSource src = CompileCache.class.getProtectionDomain().getCodeSource();
+		if (src == null) throw new IOException("cannot locate the compiler's class files");
+		Path root;
+		try {
+			root = Paths.get(src.getLocation().toURI());
+		} catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+			throw new IOException("cannot locate the compiler's class files: " + src.getLocation());
+		}
+		if (Files.isDirectory(root)) hashClasses(md, root.resolve("MJ"));
+		else try (FileSystem jar = FileSystems.newFileSystem(root, (ClassLoader)null)) {
+			hashClasses(md, jar.getPath("/MJ"));
+		}
+	}
+
+	private static void hashClasses(MessageDigest md, Path dir) throws IOException {
+		if (!Files.isRegularFile(dir.resolve("CompileCache.class")))
+			throw new IOException("no class files of the compiler in " + dir);
+		List<Path> classes;
+		try (java.util.stream.Stream<Path> s = Files.walk(dir)) {
+			classes = s.filter(p -> p.toString().endsWith(".class")).sorted().collect(java.util.stream.Collectors.toList());
+		}
+		for (Path p: classes) {
+			md.update((dir.relativize(p) + "\n").getBytes(StandardCharsets.UTF_8));
+			md.update(Files.readAllBytes(p));
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Cache key of a source file compiled against the given header snapshot (or null)
+	public String key(Path source, Path header) throws IOException {
+		MessageDigest md = sha256();
+		md.update(version);
+		for (Path p: new Path[] {header, source}) {
+			if (p == null) continue;
+			try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+				md.update(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b: md.digest()) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+	private Path entry(String key) {
+		return dir.resolve(key + ".obj");
+	}
+
+	// If key is cached, make output a copy of the entry and return true
+	public boolean fetch(String key, Path output) {
+		Path e = entry(key);
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(output.toAbsolutePath().getParent(), ".mj", ".tmp");
+			Files.delete(tmp);
+			try {
+				Files.createLink(tmp, e);
+			} catch (UnsupportedOperationException | IOException x) { // other file system, or no links
+				Files.copy(e, tmp);
+			}
+			Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(tmp); // rename is a no-op if output already was a link to e
+			Files.setLastModifiedTime(e, FileTime.fromMillis(System.currentTimeMillis()));
+			hits.incrementAndGet();
+			return true;
+		} catch (IOException x) { // not cached, or evicted meanwhile
+			try {
+				if (tmp != null) Files.deleteIfExists(tmp);
+			} catch (IOException y) {}
+			misses.incrementAndGet();
+			return false;
+		}
+	}
+
+	// Add the object file obj under key
+	public void store(String key, Path obj) {
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile(dir, key, ".tmp");
+			Files.copy(obj, tmp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tmp, entry(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException x) {
+			// the cache is an optimization; a failed store is not an error
+			try {
+				if (tmp != null) Files.deleteIfExists(tmp);	// evict() would never see it
+			} catch (IOException y) {}
+		}
+	}
+
+	// Delete least recently used entries until the cache is below its size cap
+	public void evict() {
+		List<Path> entries = new ArrayList<>();
+		Map<Path, Long> time = new HashMap<>();
+		long size = 0;
+		try (DirectoryStream<Path> s = Files.newDirectoryStream(dir, "*.obj")) {
+			for (Path p: s) {
+				try {
+					time.put(p, Files.getLastModifiedTime(p).toMillis());
+					size += Files.size(p);
+					entries.add(p);
+				} catch (IOException x) {} // deleted by another process
+			}
+		} catch (IOException x) {
+			return;
+		}
+		if (size <= maxSize) return;
+		entries.sort(Comparator.comparing(time::get));
+		for (Path p: entries) {
+			if (size <= maxSize * 9 / 10) break;
+			try {
+				long n = Files.size(p);
+				Files.delete(p);
+				size -= n;
+			} catch (IOException x) {}
+		}
+	}
+
+	public String stats() {
+		return "cache: " + hits.get() + " hits, " + misses.get() + " misses";
+	}
+}
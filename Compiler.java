@@ -4,34 +4,216 @@ package MJ;
 */
 
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 //import MJ.CodeGen.*;
+import MJ.SymTab.Scope;
+import MJ.SymTab.Snapshot;
 
 public class Compiler {
 
-	private static String objFileName(String s) {
+	static String objFileName(String s) {
 		int i = s.lastIndexOf('.');
 		if (i < 0) return s + ".obj"; else return s.substring(0, i) + ".obj";
 	}
 
+	static String symFileName(String s) {
+		int i = s.lastIndexOf('.');
+		if (i < 0) return s + ".sym"; else return s.substring(0, i) + ".sym";
+	}
+
+	private static final CompileCache cache = CompileCache.fromProperties();	// null if disabled
+
+	// -Dmj.header=<file.sym> links the declarations of a symbol snapshot below
+	// every program; -Dmj.symbols=true writes each program's global scope to
+	// <source>.sym, so that a declaration header is parsed only once.
+	private static final Path headerFile = System.getProperty("mj.header") == null ? null : Paths.get(System.getProperty("mj.header"));
+	private static final boolean writeSymbols = Boolean.getBoolean("mj.symbols");
+	private static Scope header;		// null if none
+	private static String headerError;	// diagnostic for every compilation if the header cannot be read, or null
+
+	static {
+		if (headerFile != null) {
+			try {
+				header = Snapshot.read(headerFile);
+			} catch (IOException e) {
+				headerError = "-- cannot read header " + headerFile + ": " + e.getMessage();
+			}
+		}
+	}
+
+	// Compile one source file, write its object file if there were no errors,
+	// and return the parser (errors, tokens), or null if the object file was
+	// taken from the cache. Every call has its own scanner, parser, symbol
+	// table and code buffer, so several files can be compiled concurrently;
+	// diagnostics go to out. nThreads > 1 lexes large files in parallel.
+	public static Parser compile(String source, int nThreads, PrintStream out) throws IOException {
+		String output = objFileName(source);
+		if (headerError != null) {
+			Parser parser = new Parser(new Scanner(Paths.get(source), nThreads), out);
+			out.println(headerError);
+			parser.errors++;
+			return parser;
+		}
+		String key = null;
+		if (cache != null) {
+			key = cache.key(Paths.get(source), headerFile);
+			// the cache holds no symbol files: with -Dmj.symbols the program is parsed anyway
+			if (!writeSymbols && cache.fetch(key, Paths.get(output))) return null;
+		}
+		Parser parser = new Parser(new Scanner(Paths.get(source), nThreads), out);
+		parser.tab.header = header;
+		parser.parse();
+		if (parser.errors == 0) {
+			try {
+				Files.deleteIfExists(Paths.get(output)); // may be a hard link into the cache
+				parser.code.write(new FileOutputStream(output));
+				if (cache != null) cache.store(key, Paths.get(output));
+				if (writeSymbols && parser.globals != null) Snapshot.write(parser.globals, Paths.get(symFileName(source)));
+			} catch (IOException e) {
+				out.println("-- cannot open output file "+output);
+				parser.errors++;
+			}
+		}
+		return parser;
+	}
+
+	// Cache statistics for the driver output, or null if there is no cache
+	static String cacheStats() {
+		if (cache == null) return null;
+		cache.evict();
+		return cache.stats();
+	}
+
+	//-------------------- batch mode --------------------
+
+	// Add the source files denoted by arg to files: a file, a directory
+	// (all *.mj files below it), a glob such as src/**/*.mj, or @argfile
+	// (one argument per line, # starts a comment line).
+	private static void expand(String arg, List<String> files) throws IOException {
+		if (arg.startsWith("@")) {
+			for (String line: Files.readAllLines(Paths.get(arg.substring(1)))) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) expand(line, files);
+			}
+		} else if (arg.indexOf('*') >= 0 || arg.indexOf('?') >= 0 || arg.indexOf('{') >= 0) {
+			int i = arg.lastIndexOf('/', indexOfWildcard(arg));
+			Path dir = Paths.get(i < 0 ? "." : arg.substring(0, i + 1));
+			PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+			try (java.util.stream.Stream<Path> s = Files.walk(dir)) {
+				s.filter(p -> Files.isRegularFile(p) && m.matches(i < 0 ? dir.relativize(p) : p))
+					.map(Path::toString).sorted().forEach(files::add);
+			}
+		} else if (Files.isDirectory(Paths.get(arg))) {
+			try (java.util.stream.Stream<Path> s = Files.walk(Paths.get(arg))) {
+				s.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".mj"))
+					.map(Path::toString).sorted().forEach(files::add);
+			}
+		} else files.add(arg);
+	}
+
+	private static int indexOfWildcard(String s) {
+		for (int i = 0; i < s.length(); i++)
+			if ("*?{[".indexOf(s.charAt(i)) >= 0) return i;
+		return -1;
+	}
+
+	// Result of compiling one file in batch mode
+	private static class Result {
+		String source;
+		int errors, tokens;
+		long nanos;
+	}
+
+	// Compile all files on a work-stealing pool with one worker per processor.
+	// At most 4 files per worker are in flight, which bounds the memory held by
+	// parsers and buffered diagnostics. Returns the total number of errors.
+	private static int batch(List<String> files) throws InterruptedException {
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		Semaphore inFlight = new Semaphore(4 * nThreads);
+		List<Result> results = Collections.synchronizedList(new ArrayList<>());
+		long start = System.nanoTime();
+		for (String source: files) {
+			inFlight.acquire();
+			pool.execute(() -> {
+				Result r = new Result();
+				r.source = source;
+				ByteArrayOutputStream diag = new ByteArrayOutputStream();
+				PrintStream out = new PrintStream(diag);
+				long t0 = System.nanoTime();
+				try {
+					Parser parser = compile(source, 1, out);
+					if (parser != null) {r.errors = parser.errors; r.tokens = parser.tokens;}
+				} catch (IOException e) {
+					out.println("-- cannot open input file " + source);
+					r.errors = 1;
+				} catch (Throwable e) {	// also errors such as StackOverflowError: the batch goes on
+					out.println("-- internal error: " + e);
+					r.errors = 1;
+				} finally {
+					r.nanos = System.nanoTime() - t0;
+					if (r.errors > 0) {
+						out.flush();
+						synchronized (System.out) {
+							System.out.println("== " + source);
+							System.out.print(diag.toString());
+						}
+					}
+					results.add(r);
+					inFlight.release();
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		double secs = (System.nanoTime() - start) / 1e9;
+
+		int errors = 0, failed = 0; long tokens = 0;
+		for (Result r: results) {
+			errors += r.errors; tokens += r.tokens;
+			if (r.errors > 0) failed++;
+		}
+		System.out.printf("%d files (%d with errors), %d errors, %d tokens in %.2f s%n",
+			results.size(), failed, errors, tokens, secs);
+		System.out.printf("%.0f files/s, %.0f tokens/s%n", results.size() / secs, tokens / secs);
+		String stats = cacheStats();
+		if (stats != null) System.out.println(stats);
+		results.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+		System.out.println("slowest files:");
+		for (int i = 0; i < Math.min(10, results.size()); i++) {
+			Result r = results.get(i);
+			System.out.printf("  %8.2f ms  %s%n", r.nanos / 1e6, r.source);
+		}
+		return errors;
+	}
+
 	// Main procedure of MicroJava compiler
 	public static void main(String args[]) {
-		if (args.length > 0) {
+		if (args.length == 1 && Files.isRegularFile(Paths.get(args[0]))) {
 			String source = args[0];
-			String output = objFileName(source);
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
-				Parser.parse();
-				if (Parser.errors == 0) {
-					// try {
-					// 	Code.write(new FileOutputStream(output));
-					// } catch (IOException e) {
-					// 	System.out.println("-- cannot open output file "+output);
-					// }
-				}
+				Parser parser = compile(source, Runtime.getRuntime().availableProcessors(), System.out);
+				String stats = cacheStats();
+				if (stats != null) System.out.println(stats);
+				if (parser != null && parser.errors > 0) System.exit(1);
 			} catch (IOException e) {
 				System.out.println("-- cannot open input file " + source);
+				System.exit(1);
+			}
+		} else if (args.length > 0) {
+			List<String> files = new ArrayList<>();
+			try {
+				for (String arg: args) expand(arg, files);
+				if (batch(files) > 0) System.exit(1);
+			} catch (IOException e) {
+				System.out.println("-- cannot read " + e.getMessage());
+				System.exit(1);
+			} catch (InterruptedException e) {
+				System.exit(1);
 			}
-		} else System.out.println("-- synopsis: java MJ.Compiler <inputfileName>");
+		} else System.out.println("-- synopsis: java MJ.Compiler (<inputfileName> | <dir> | <glob> | @<argfile>)...");
 	}
 
-}
\ No newline at end of file
+}
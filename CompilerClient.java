@@ -0,0 +1,40 @@
+package MJ;
+/* MicroJava Compiler Client
+   =========================
+   Sends source files to a running CompilerDaemon and prints its replies.
+   Run with
+     java MJ.CompilerClient <socketFile> <inputFileName>...
+   The exit code is 1 if any file had errors.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class CompilerClient {
+
+	public static void main(String args[]) {
+		if (args.length < 2) {
+			System.out.println("-- synopsis: java MJ.CompilerClient <socketFile> <inputFileName>...");
+			return;
+		}
+		int exitCode = 1;
+		try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(args[0]))) {
+			Writer w = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8);
+			for (int i = 1; i < args.length; i++) w.write(Paths.get(args[i]).toAbsolutePath() + "\n");
+			w.flush();
+			ch.shutdownOutput();
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (line.startsWith("== done ")) exitCode = Integer.parseInt(line.substring(8));
+				else System.out.println(line);
+			}
+		} catch (IOException e) {
+			System.out.println("-- cannot reach compiler daemon at " + args[0] + ": " + e.getMessage());
+		}
+		System.exit(exitCode);
+	}
+
+}
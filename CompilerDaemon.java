@@ -0,0 +1,97 @@
+package MJ;
+/* MicroJava Compiler Daemon
+   =========================
+   Keeps a warmed-up compiler resident and compiles the files that
+   CompilerClient sends over a Unix domain socket.
+   Run with
+     java MJ.CompilerDaemon <socketFile>
+
+   Protocol (UTF-8 text lines): the client sends one absolute source path
+   per line and then shuts down its output. For every source the daemon
+   streams back the compiler's diagnostics followed by a status line
+     "== <source> <errors> <objFile>"     (objFile is "-" if none was written)
+   and after the last source a final line "== done <exitCode>".
+   CompilerClient pays JVM startup itself; build tools that already run
+   in a JVM, or a shell using e.g.
+     printf '%s\n' /abs/path/File.mj | socat - UNIX-CONNECT:<socketFile>
+   get the warm-compiler latency directly.
+*/
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+public class CompilerDaemon {
+
+	private static final String warmUpSource =
+		"program W final int n = 10; class C { int[] a; } C c; int g; {\n" +
+		"  int f(int x, char y) int i; { i = 0; while (i < n) { g = g + x * i - ord(y) % 3; i = i + 1; } return g; }\n" +
+		"  void main() int z; { // comment\n z = f(3, 'a'); if (z >= 0) g = 0; else g = 1; c = new C; }\n}\n";
+
+	// compile warmUpSource often enough for the JIT to compile the hot paths
+	private static void warmUp() {
+		PrintStream none = new PrintStream(OutputStream.nullOutputStream());
+		for (int i = 0; i < 2000; i++) {
+			Parser parser = new Parser(new Scanner(new StringReader(warmUpSource)), none);
+			parser.parse();
+		}
+	}
+
+	// Serve one client connection
+	private static void serve(SocketChannel ch) {
+		try (ch;
+			 BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.UTF_8));
+			 PrintStream out = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(ch)), false, StandardCharsets.UTF_8)) {
+			int exitCode = 0;
+			for (String source = in.readLine(); source != null; source = in.readLine()) {
+				if (source.length() == 0) continue;
+				int errors;
+				try {
+					Parser parser = Compiler.compile(source, 1, out);
+					errors = parser == null ? 0 : parser.errors; // null: taken from the cache
+				} catch (IOException e) {
+					out.println("-- cannot open input file " + source);
+					errors = 1;
+				} catch (Throwable e) {	// a compiler bug must not end the session without status lines
+					out.println("-- internal error: " + e);
+					errors = 1;
+				}
+				if (errors > 0) exitCode = 1;
+				out.println("== " + source + " " + errors + " " + (errors == 0 ? Compiler.objFileName(source) : "-"));
+				out.flush();
+			}
+			out.println("== done " + exitCode);
+		} catch (IOException e) {
+			System.out.println("-- connection failed: " + e.getMessage());
+		}
+	}
+
+	public static void main(String args[]) {
+		if (args.length == 0) {
+			System.out.println("-- synopsis: java MJ.CompilerDaemon <socketFile>");
+			return;
+		}
+		Path socket = Paths.get(args[0]);
+		warmUp();
+		ExecutorService pool = Executors.newCachedThreadPool();
+		try {
+			Files.deleteIfExists(socket);
+			try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+				server.bind(UnixDomainSocketAddress.of(socket));
+				System.out.println("-- listening on " + socket);
+				for (;;) {
+					SocketChannel ch = server.accept();
+					pool.execute(() -> serve(ch));
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("-- cannot listen on " + socket + ": " + e.getMessage());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
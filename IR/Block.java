@@ -0,0 +1,36 @@
+/* MicroJava IR Basic Blocks
+   =========================
+A basic block is a list of instructions: its phis first, and exactly one
+terminator (jump, if, return, trap) at the end. Control flow edges are
+kept in both directions; the i-th argument of a phi belongs to preds[i].
+*/
+package MJ.IR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Block {
+	public final int id;	// number in the order of creation
+	public final List<Instr> instrs = new ArrayList<>();
+	public final List<Block> preds = new ArrayList<>();
+	public final List<Block> succs = new ArrayList<>();
+
+	public Block(int id) {
+		this.id = id;
+	}
+
+	// Append x to this block
+	public Instr add(Instr x) {
+		x.block = this;
+		instrs.add(x);
+		return x;
+	}
+
+	public Instr terminator() {
+		return instrs.isEmpty() ? null : instrs.get(instrs.size() - 1);
+	}
+
+	public String toString() {
+		return "B" + id;
+	}
+}
@@ -0,0 +1,464 @@
+/* MicroJava IR Builder
+   ====================
+Builds the SSA form of a method while the parser parses its body. With
+-Dmj.ir=true the parser calls the builder instead of Code for the body of
+every method, with the same operands: load pushes the value of an Operand
+on the builder's expression stack (a list of values), assignTo, arith and
+the other operations take their operands from there, and the jumps to a
+Label and its definition (here) make the basic blocks. A block starts
+where it is entered and ends with its terminator; code after a jump or
+return goes into a block without predecessors, which is dropped at the end.
+Locals are the variables of the SSA construction; their values are found
+on the fly as in Braun et al., "Simple and Efficient Construction of Static
+Single Assignment Form" (CC 2013): phis are placed when a local is read in
+a block whose predecessors are not all known yet (unsealed) or that has
+several, and trivial phis are removed. MicroJava has no break or continue,
+so a block is sealed when it is entered after jumps to it, and the top of a
+loop when its only backward jump is added.
+Every value gets its type from the declarations that the parser resolved.
+Enable with -Dmj.ir=true (the default of Parser.useIR); -Dmj.irDump=true
+also prints the IR.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.Parser;
+import MJ.CodeGen.Code;
+import MJ.CodeGen.Label;
+import MJ.CodeGen.Operand;
+import MJ.SymTab.*;
+
+public class Builder {
+	public static final boolean enabled = Boolean.getBoolean("mj.ir");
+	public static final boolean dump = Boolean.getBoolean("mj.irDump");
+
+	private final Parser parser;
+	private final Method m;
+	private final Struct[] localType;	// by slot
+	private final Block entry;
+	private Block cur;					// block being filled, or null after a jump or return
+	private final List<Instr> stack = new ArrayList<>();	// expression stack
+	private final Map<Label, Block> labels = new IdentityHashMap<>();
+	private final List<Block> created = new ArrayList<>();	// by id
+
+	// SSA construction; by block id
+	private final List<Instr[]> def = new ArrayList<>();	// current value of every slot
+	private final List<Map<Integer, Instr>> incomplete = new ArrayList<>();	// phis waiting for sealing
+	private final BitSet sealed = new BitSet(), entered = new BitSet();
+	private final Instr[] initial;		// by slot: value on entry
+
+	// Start the SSA form of the body of meth, whose parameters and local
+	// variables (meth.locals) take nVars slots
+	public Builder(Parser parser, Obj meth, int nVars) {
+		this.parser = parser;
+		m = new Method(meth);
+		localType = new Struct[nVars];
+		for (Obj o = meth.locals; o != null; o = o.next)
+			if (o.kind == Obj.Var && o.adr < nVars) localType[o.adr] = o.type;
+		initial = new Instr[nVars];
+		entry = newBlock();
+		m.blocks.add(entry);
+		entered.set(entry.id); sealed.set(entry.id);
+		entry.add(new Instr(Instr.Jump, 0, Tab.noType));
+		Block first = newBlock();
+		edge(entry, first);
+		enter(first);
+		sealed.set(first.id);
+	}
+
+	//---------------- blocks ----------------
+
+	private Block newBlock() {
+		Block b = new Block(created.size());
+		created.add(b);
+		def.add(new Instr[initial.length]);
+		incomplete.add(new HashMap<>());
+		return b;
+	}
+
+	private Block block(Label l) {
+		Block b = labels.get(l);
+		if (b == null) { b = newBlock(); labels.put(l, b); }
+		return b;
+	}
+
+	private static void edge(Block from, Block to) {
+		from.succs.add(to);
+		to.preds.add(from);
+	}
+
+	private void enter(Block b) {
+		entered.set(b.id);
+		m.blocks.add(b);
+		cur = b;
+	}
+
+	// The block to add instructions to; code after a jump or return is unreachable
+	private Block current() {
+		if (cur == null) {
+			Block b = newBlock();
+			enter(b);
+			sealed.set(b.id);
+		}
+		return cur;
+	}
+
+	private Instr add(Instr x) {
+		return current().add(x);
+	}
+
+	private void seal(Block b) {
+		if (sealed.get(b.id)) return;
+		for (Map.Entry<Integer, Instr> e: incomplete.get(b.id).entrySet()) addOperands(e.getKey(), e.getValue());
+		incomplete.get(b.id).clear();
+		sealed.set(b.id);
+	}
+
+	//---------------- locals ----------------
+
+	private void write(int slot, Block b, Instr x) {
+		def.get(b.id)[slot] = x;
+	}
+
+	private Instr read(int slot, Block b) {
+		Instr x = def.get(b.id)[slot];
+		return x != null ? resolve(x) : readRecursive(slot, b);
+	}
+
+	private Instr readRecursive(int slot, Block b) {
+		Instr x;
+		if (b == entry) x = initial(slot);
+		else if (!sealed.get(b.id)) {
+			x = phi(b, slot);
+			incomplete.get(b.id).put(slot, x);
+		} else if (b.preds.isEmpty()) x = zero(localType[slot]);	// unreachable
+		else if (b.preds.size() == 1) x = read(slot, b.preds.get(0));
+		else {
+			x = phi(b, slot);
+			write(slot, b, x);
+			x = addOperands(slot, x);
+		}
+		write(slot, b, x);
+		return x;
+	}
+
+	private Instr phi(Block b, int slot) {
+		Instr x = new Instr(Instr.Phi, 0, localType[slot] != null ? localType[slot] : Tab.intType);
+		x.args = null;
+		x.block = b;
+		int k = 0;
+		while (k < b.instrs.size() && b.instrs.get(k).op == Instr.Phi) k++;
+		b.instrs.add(k, x);
+		return x;
+	}
+
+	private Instr addOperands(int slot, Instr phi) {
+		Block b = phi.block;
+		phi.args = new Instr[b.preds.size()];
+		for (int k = 0; k < phi.args.length; k++) {
+			phi.args[k] = read(slot, b.preds.get(k));
+			phi.args[k].users().add(phi);
+		}
+		return removeTrivial(phi);
+	}
+
+	// Replace phi by its only argument (other than itself), if it has one
+	private Instr removeTrivial(Instr phi) {
+		Instr same = null;
+		for (Instr a: phi.args) {
+			a = resolve(a);
+			if (a == same || a == phi) continue;
+			if (same != null) return phi;
+			same = a;
+		}
+		if (same == null) same = zero(phi.type);	// only reachable through itself
+		phi.forward = same;
+		List<Instr> users = new ArrayList<>(phi.users());
+		same.users().addAll(users);
+		for (Instr u: users)
+			if (u != phi && u.forward == null && u.args != null) removeTrivial(u);
+		return same;
+	}
+
+	private static Instr resolve(Instr x) {
+		while (x.forward != null) x = x.forward;
+		return x;
+	}
+
+	// Value of slot on entry: a parameter or zero
+	private Instr initial(int slot) {
+		if (initial[slot] == null) {
+			Struct t = localType[slot];
+			if (slot < m.meth.nPars) {
+				initial[slot] = new Instr(Instr.Param, slot, t != null ? t : Tab.intType);
+				initial[slot].block = entry;
+				entry.instrs.add(entry.instrs.size() - 1, initial[slot]);
+			} else initial[slot] = zero(t);
+		}
+		return initial[slot];
+	}
+
+	// A zero (or null) of type t in the entry block
+	private Instr zero(Struct t) {
+		Instr x = new Instr(Instr.Const, 0, t == null ? Tab.intType : t.isRefType() ? Tab.nullType : t);
+		x.block = entry;
+		entry.instrs.add(entry.instrs.size() - 1, x);
+		return x;
+	}
+
+	//---------------- expression stack ----------------
+
+	private void push(Instr x) {
+		stack.add(x);
+	}
+
+	// The value on top of the stack (after a syntax error there may be none)
+	private Instr pop() {
+		return stack.isEmpty() ? zero(Tab.intType) : stack.remove(stack.size() - 1);
+	}
+
+	//---------------- operations (as the methods of the same name in Code) ----------------
+
+	// Push the value of x
+	public void load(Operand x) {
+		Instr a, i;
+		switch (x.kind) {
+			case Operand.Con:
+				push(add(new Instr(Instr.Const, x.val, x.type))); break;
+			case Operand.Local:
+				push(x.adr < initial.length ? read(x.adr, current()) : zero(x.type)); break;
+			case Operand.Static:
+				push(add(new Instr(Instr.GetStatic, x.adr, x.type))); break;
+			case Operand.Fld:
+				a = pop();
+				push(add(new Instr(Instr.GetField, x.adr, x.type, a)));
+				break;
+			case Operand.Elem:
+				i = pop(); a = pop();
+				push(add(new Instr(x.type == Tab.charType ? Instr.BALoad : Instr.ALoad, 0, x.type, a, i)));
+				break;
+			case Operand.Stack: break;
+			default: parser.error("cannot load this value");
+		}
+		x.kind = Operand.Stack;
+	}
+
+	// Assign the value on the stack to x
+	public void assignTo(Operand x) {
+		Instr y = pop(), a, i;
+		switch (x.kind) {
+			case Operand.Local:
+				if (x.adr < initial.length) write(x.adr, current(), y);
+				break;
+			case Operand.Static:
+				add(new Instr(Instr.PutStatic, x.adr, Tab.noType, y)); break;
+			case Operand.Fld:
+				a = pop();
+				add(new Instr(Instr.PutField, x.adr, Tab.noType, a, y));
+				break;
+			case Operand.Elem:
+				i = pop(); a = pop();
+				add(new Instr(x.type == Tab.charType ? Instr.BAStore : Instr.AStore, 0, Tab.noType, a, i, y));
+				break;
+			default: parser.error("cannot assign to this value");
+		}
+	}
+
+	// x op y (op is Code.add, sub, mul, div or rem); x is a constant or on
+	// the stack. Constants are folded, and x+0, x-0, 0+x, 0-x, x*1, 1*x, x/1
+	// and multiplications by a power of 2 (a shift) are simplified.
+	public Operand arith(int op, Operand x, Operand y) {
+		if (y.kind == Operand.Con) {
+			if ((op == Code.div || op == Code.rem) && y.val == 0) {
+				parser.error("division by zero");
+				return x;
+			}
+			if (x.kind == Operand.Con) {
+				switch (op) {
+					case Code.add: x.val += y.val; break;
+					case Code.sub: x.val -= y.val; break;
+					case Code.mul: x.val *= y.val; break;
+					case Code.div: x.val /= y.val; break;
+					default:       x.val %= y.val;
+				}
+				x.type = Tab.intType;
+				return x;
+			}
+			if (y.val == 0 && (op == Code.add || op == Code.sub) || y.val == 1 && (op == Code.mul || op == Code.div)) return x;
+			if (op == Code.mul && y.val > 0 && (y.val & (y.val - 1)) == 0)
+				return shift(x, Integer.numberOfTrailingZeros(y.val));
+		} else if (x.kind == Operand.Con) {
+			if (x.val == 0 && op == Code.add || x.val == 1 && op == Code.mul) return y;
+			if (x.val == 0 && op == Code.sub) {
+				load(y); neg();
+				return new Operand(Operand.Stack, 0, Tab.intType);
+			}
+			if (op == Code.mul && x.val > 0 && (x.val & (x.val - 1)) == 0)
+				return shift(y, Integer.numberOfTrailingZeros(x.val));
+		}
+		load(y);	// a constant x was not loaded by the parser and comes after y on the stack
+		Instr b = pop(), a = x.kind == Operand.Con ? add(new Instr(Instr.Const, x.val, x.type)) : pop();
+		push(add(new Instr(arith(op), 0, Tab.intType, a, b)));
+		return new Operand(Operand.Stack, 0, Tab.intType);
+	}
+
+	// x * 2^n
+	private Operand shift(Operand x, int n) {
+		load(x);
+		Instr a = pop();
+		push(add(new Instr(Instr.Shl, 0, Tab.intType, a, add(new Instr(Instr.Const, n, Tab.intType)))));
+		return new Operand(Operand.Stack, 0, Tab.intType);
+	}
+
+	// IR operation of the arithmetic instruction op
+	private static int arith(int op) {
+		switch (op) {
+			case Code.add: return Instr.Add;
+			case Code.sub: return Instr.Sub;
+			case Code.mul: return Instr.Mul;
+			case Code.div: return Instr.Div;
+			case Code.rem: return Instr.Rem;
+			default: throw new IllegalArgumentException("not an arithmetic instruction: " + op);
+		}
+	}
+
+	public void neg() {
+		push(add(new Instr(Instr.Neg, 0, Tab.intType, pop())));
+	}
+
+	// Call of meth with the actual parameters on the stack
+	public void call(Obj meth) {
+		Instr[] args = new Instr[meth.nPars];
+		for (int k = args.length - 1; k >= 0; k--) args[k] = pop();
+		Instr x = add(new Instr(Instr.Call, meth.adr, meth.type, args));
+		x.method = meth;
+		if (x.hasValue()) push(x);
+	}
+
+	public void arrayLength() {
+		push(add(new Instr(Instr.ArrayLength, 0, Tab.intType, pop())));
+	}
+
+	// New object of the class type
+	public void newObject(Struct type) {
+		push(add(new Instr(Instr.New, type.nFields * 4, type)));
+	}
+
+	// New array of elemType; its length is on the stack
+	public void newArray(Struct elemType) {
+		push(add(new Instr(Instr.NewArray, elemType == Tab.charType ? 0 : 1, elemType.arrayType(), pop())));
+	}
+
+	// Push a value read from the input, an int or a char
+	public void read(Struct type) {
+		push(add(type == Tab.charType ? new Instr(Instr.BRead, 0, Tab.charType) : new Instr(Instr.Read, 0, Tab.intType)));
+	}
+
+	// Print the value under the width on the stack, as an int or a char
+	public void print(Struct type) {
+		Instr width = pop(), x = pop();
+		add(new Instr(type == Tab.charType ? Instr.BPrint : Instr.Print, 0, Tab.noType, x, width));
+	}
+
+	// Drop the value on the stack (Lowering pops unused values)
+	public void discard() {
+		pop();
+	}
+
+	// Return, with the value on the stack unless the method is void
+	public void ret() {
+		Block b = current();
+		b.add(m.meth.type == Tab.noType ? new Instr(Instr.Return, 0, Tab.noType) : new Instr(Instr.Return, 0, Tab.noType, pop()));
+		cur = null;
+	}
+
+	public void trap(int n) {
+		current().add(new Instr(Instr.Trap, n, Tab.noType));
+		cur = null;
+	}
+
+	//---------------- jumps ----------------
+
+	// Jump to l if the comparison op of the two values on the stack is false
+	public void falseJump(int op, Label l) {
+		Instr y = pop(), x = pop();
+		Block b = current(), t = newBlock(), f = block(l);
+		b.add(new Instr(Instr.If, op, Tab.noType, x, y));
+		edge(b, t); edge(b, f);
+		enter(t);
+		sealed.set(t.id);
+	}
+
+	// Jump to l; a jump back to a block that is already entered is the last
+	// edge into it (the end of a while loop)
+	public void jump(Label l) {
+		Block b = current(), s = block(l);
+		b.add(new Instr(Instr.Jump, 0, Tab.noType));
+		edge(b, s);
+		cur = null;
+		if (entered.get(s.id)) seal(s);
+	}
+
+	// Define l here; the current block falls through to it
+	public void here(Label l) {
+		Block b = block(l);
+		boolean jumped = !b.preds.isEmpty();
+		if (cur != null) {
+			cur.add(new Instr(Instr.Jump, 0, Tab.noType));
+			edge(cur, b);
+		}
+		enter(b);
+		if (jumped) seal(b);	// otherwise the top of a loop
+	}
+
+	//---------------- end of the body ----------------
+
+	// The SSA form of the body, which has ended with a return or trap; the
+	// unreachable blocks are dropped with their edges and phi arguments
+	public Method finish() {
+		for (Block b: created) seal(b);
+		Set<Block> reached = new HashSet<>();
+		Deque<Block> work = new ArrayDeque<>();
+		work.add(entry); reached.add(entry);
+		while (!work.isEmpty())
+			for (Block s: work.remove().succs)
+				if (reached.add(s)) work.add(s);
+		m.blocks.removeIf(b -> !reached.contains(b));
+		for (Block b: m.blocks)
+			for (int k = b.preds.size() - 1; k >= 0; k--)
+				if (!reached.contains(b.preds.get(k))) {
+					b.preds.remove(k);
+					for (Instr x: b.instrs) {
+						if (x.op != Instr.Phi) break;
+						List<Instr> args = new ArrayList<>(Arrays.asList(x.args));
+						args.remove(k);
+						x.args = args.toArray(new Instr[0]);
+					}
+				}
+		for (boolean changed = true; changed; ) {	// phis that became trivial
+			changed = false;
+			for (Block b: m.blocks)
+				for (Instr x: b.instrs) {
+					if (x.op != Instr.Phi) break;
+					if (x.forward != null) continue;
+					Instr same = null;
+					boolean trivial = true;
+					for (Instr a: x.args) {
+						a = resolve(a);
+						if (a == x || a == same) continue;
+						if (same != null) trivial = false;
+						same = a;
+					}
+					if (trivial) { x.forward = same != null ? same : zero(x.type); changed = true; }
+				}
+		}
+		for (Block b: m.blocks) {	// drop removed phis, use the values that replaced them
+			b.instrs.removeIf(x -> x.forward != null);
+			for (Instr x: b.instrs) {
+				for (int k = 0; k < x.args.length; k++) x.args[k] = resolve(x.args[k]);
+				x.users = null;
+			}
+		}
+		return m;
+	}
+}
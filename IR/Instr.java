@@ -0,0 +1,103 @@
+/* MicroJava IR Instructions
+   =========================
+An instruction of the SSA form of a method (see Method). An instruction
+that produces a value is that value: the args of other instructions refer
+to it directly, and it is defined exactly once. Values that meet at a join
+are merged by a phi at the start of the block, with one argument per
+predecessor. The type of a value is a Struct of the symbol table;
+instructions without a value have Tab.noType.
+Statics, fields and array elements are only accessed by explicit loads and
+stores; locals and the expression stack exist only as SSA values.
+*/
+package MJ.IR;
+
+import java.util.ArrayList;
+import java.util.List;
+import MJ.SymTab.*;
+
+public class Instr {
+	public static final int // operations
+		Const       =  0,	// val
+		Param       =  1,	// val: number of the parameter
+		Phi         =  2,	// args: one per predecessor of block
+		Add         =  3,	// args: x, y
+		Sub         =  4,
+		Mul         =  5,
+		Div         =  6,
+		Rem         =  7,
+		Shl         =  8,
+		Shr         =  9,
+		Neg         = 10,	// args: x
+		GetStatic   = 11,	// val: address
+		PutStatic   = 12,	// val: address; args: x
+		GetField    = 13,	// val: field address; args: object
+		PutField    = 14,	// val: field address; args: object, x
+		ALoad       = 15,	// args: array, index
+		AStore      = 16,	// args: array, index, x
+		BALoad      = 17,	// char arrays
+		BAStore     = 18,
+		ArrayLength = 19,	// args: array
+		New         = 20,	// val: size in bytes
+		NewArray    = 21,	// val: 0 for char, 1 for word elements; args: length
+		Call        = 22,	// val: address; args: actual parameters; method: callee
+		Read        = 23,
+		BRead       = 24,
+		Print       = 25,	// args: x, width
+		BPrint      = 26,
+		Jump        = 27,	// to block.succs[0]
+		If          = 28,	// val: Code.eq .. Code.ge; args: x, y; true: block.succs[0], false: succs[1]
+		Return      = 29,	// args: [x]
+		Trap        = 30;	// val: trap code
+	static final String[] opName = {
+		"const", "param", "phi", "add", "sub", "mul", "div", "rem", "shl", "shr", "neg",
+		"getstatic", "putstatic", "getfield", "putfield", "aload", "astore", "baload", "bastore",
+		"arraylength", "new", "newarray", "call", "read", "bread", "print", "bprint",
+		"jump", "if", "return", "trap"
+	};
+	static final String[] condName = {"eq", "ne", "lt", "le", "gt", "ge"};
+
+	public int      op;
+	public int      val;
+	public Struct   type;
+	public Instr[]  args;
+	public Block    block;	// block that contains this instruction
+	public Obj      method;	// Call: called method
+	public int      id;		// number of this instruction (see Method.number)
+
+	Instr forward;		// construction: value that replaced this (trivial) phi
+	List<Instr> users;	// construction: phis that use this value
+
+	public Instr(int op, int val, Struct type, Instr... args) {
+		this.op = op; this.val = val; this.type = type; this.args = args;
+	}
+
+	public boolean hasValue() {
+		return type != Tab.noType;
+	}
+
+	public boolean isTerminator() {
+		return op >= Jump;
+	}
+
+	List<Instr> users() {
+		if (users == null) users = new ArrayList<>();
+		return users;
+	}
+
+	// The operand as it appears in a dump
+	public String toString() {
+		return op == Const ? Integer.toString(val) : "v" + id;
+	}
+
+	static String typeName(Struct t) {
+		if (t == null) return "?";
+		if (t == Tab.nullType) return "null";
+		switch (t.kind) {
+			case Struct.Int:   return "int";
+			case Struct.Char:  return "char";
+			case Struct.Arr:   return typeName(t.elemType) + "[]";
+			case Struct.Class: return "class(" + t.nFields + ")";
+			default:           return "void";
+		}
+	}
+}
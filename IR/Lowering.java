@@ -0,0 +1,390 @@
+/* MicroJava IR Lowering
+   =====================
+Turns the SSA form of a method into code of the instruction set in Code,
+after the enter instruction of the method:
+- Critical edges into blocks with phis get a block of their own, so that the
+  phis can be resolved by copies at the end of each predecessor. The copies
+  go through the expression stack (all loads first, then the stores), which
+  makes them parallel.
+- A value with a single use later in its own block is left on the stack for
+  it, as long as the stack order allows that (arguments in front of it may be
+  loaded early); constants are loaded where they are used. All other values
+  that are used get a local slot.
+- Slots are assigned greedily in reverse postorder, from the live values at
+  the start of each block (SSA live ranges are dominance subtrees, so this
+  needs no backtracking). Parameter n keeps slot n; a phi and its arguments
+  share a slot where it is free, which saves their copies.
+The blocks are emitted in their order in Method.blocks, with Labels. Calls
+of small leaf methods are inlined (see CodeGen.Inliner) into the slots after
+those of the values.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.CodeGen.Code;
+import MJ.CodeGen.Inliner;
+import MJ.CodeGen.Label;
+import MJ.SymTab.Obj;
+import MJ.SymTab.Tab;
+
+public class Lowering {
+	private static final int[] inverse = {Code.ne, Code.eq, Code.ge, Code.gt, Code.le, Code.lt};
+	private static final int[] swapped = {Code.eq, Code.ne, Code.gt, Code.ge, Code.lt, Code.le};	// for exchanged operands
+
+	private final Method m;
+	private final Code code;
+	private final Obj globals;	// objects of the program scope, for the Inliner
+	private int frame;			// slots used by the values
+	private int inlined;		// slots used by inlined calls, beyond frame
+	private int[] uses;			// by value id: number of uses
+	private Instr[] user;		// by value id: a user
+	private boolean[] kept;		// by value id: stays on the stack for its user
+	private int[] ready;		// by instruction id: number of leading arguments already on the stack
+	private Instr[][] early;	// by instruction id: values to load before it, for later users
+	private int[] slot;			// by value id: local slot, or -1
+	private BitSet[] liveIn, liveOut;	// by block id: values with slots
+	private List<Block> rpo;
+
+	private Lowering(Method m, Code code, Obj globals) {
+		this.m = m; this.code = code; this.globals = globals;
+	}
+
+	// Generate the code of m at code.pc; globals are the objects of the program
+	// scope. Returns the number of local slots used, or -1 if they do not fit
+	// into a frame (no code is generated then).
+	public static int lower(Method m, Code code, Obj globals) {
+		return new Lowering(m, code, globals).run();
+	}
+
+	private int run() {
+		splitEdges();
+		int n = m.number();
+		uses = new int[n]; user = new Instr[n];
+		for (Block b: m.blocks)
+			for (Instr x: b.instrs)
+				for (Instr a: x.args) { uses[a.id]++; user[a.id] = x; }
+		stackify(n);
+		order();
+		liveness(n);
+		frame = allocate(n);
+		if (frame > 255) return -1;
+		emit();
+		return frame + inlined;
+	}
+
+	private void splitEdges() {
+		int id = 0;
+		for (Block b: m.blocks) id = Math.max(id, b.id + 1);
+		for (Block b: new ArrayList<>(m.blocks)) {
+			if (b.succs.size() < 2) continue;
+			for (int k = 0; k < b.succs.size(); k++) {
+				Block s = b.succs.get(k);
+				if (s.instrs.get(0).op != Instr.Phi) continue;
+				Block e = new Block(id++);
+				e.add(new Instr(Instr.Jump, 0, Tab.noType));
+				e.preds.add(b); e.succs.add(s);
+				b.succs.set(k, e);
+				s.preds.set(s.preds.indexOf(b), e);
+				int i = m.blocks.indexOf(b);
+				if (i + 1 < m.blocks.size() && m.blocks.get(i + 1) == s) m.blocks.add(i + 1, e);	// keep falling through
+				else m.blocks.add(e);
+			}
+		}
+	}
+
+	//---------------- values on the stack ----------------
+
+	private boolean needsSlot(Instr x) {
+		return x.hasValue() && uses[x.id] > 0 && !kept[x.id] && x.op != Instr.Const;
+	}
+
+	// Decide which values stay on the stack: a run of arguments that their
+	// user finds on top of the stack. The arguments in front of the run are
+	// loaded early, before the code of the run starts, if they are defined by
+	// then. Operands of commutative operations and comparisons are exchanged
+	// where that saves the early loads.
+	private void stackify(int n) {
+		kept = new boolean[n];
+		for (Block b: m.blocks)
+			for (Instr x: b.instrs)
+				kept[x.id] = x.hasValue() && x.op != Instr.Const && x.op != Instr.Param && x.op != Instr.Phi
+					&& uses[x.id] == 1 && user[x.id].block == b && user[x.id].op != Instr.Phi;
+		for (Block b: m.blocks)
+			for (Instr x: b.instrs)
+				if ((x.op == Instr.Add || x.op == Instr.Mul || x.op == Instr.If) && kept[x.args[1].id] && !kept[x.args[0].id]) {
+					Instr a = x.args[0]; x.args[0] = x.args[1]; x.args[1] = a;
+					if (x.op == Instr.If) x.val = swapped[x.val];
+				}
+		ready = new int[n];
+		int[] index = new int[n];		// by id: index in its block
+		Instr[] first = new Instr[n];	// by id: first instruction of the code of a value
+		for (Block b: m.blocks)
+			for (int i = 0; i < b.instrs.size(); i++) index[b.instrs.get(i).id] = i;
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			early = new Instr[n][];
+			for (Block b: m.blocks) {
+				for (Instr x: b.instrs) {
+					first[x.id] = x;
+					if (x.op == Instr.Phi || x.op == Instr.Param || x.op == Instr.Const) continue;
+					Instr[] a = x.args;
+					int p = 0, q;
+					while (p < a.length && !kept[a[p].id]) p++;
+					for (q = p; q < a.length && kept[a[q].id]; q++) ;
+					for (int i = q; i < a.length; i++)
+						if (kept[a[i].id]) { kept[a[i].id] = false; changed = true; }
+					if (p == q) { ready[x.id] = 0; continue; }
+					Instr f = first[a[p].id];
+					boolean ok = true;
+					for (int i = 0; ok && i < p; i++)
+						ok = a[i].op == Instr.Const || a[i].block != b || index[a[i].id] < index[f.id];
+					if (ok) {
+						first[x.id] = f;
+						if (p > 0) {	// in front of those of inner users
+							Instr[] e = early[f.id] == null ? new Instr[0] : early[f.id];
+							early[f.id] = Arrays.copyOf(a, p + e.length);
+							System.arraycopy(e, 0, early[f.id], p, e.length);
+						}
+						ready[x.id] = q;
+					} else {
+						for (int i = p; i < q; i++) kept[a[i].id] = false;
+						ready[x.id] = 0;
+						changed = true;
+					}
+				}
+			}
+			if (!changed) changed = !simulate();
+		}
+	}
+
+	// Check that every instruction finds its ready arguments on top of the
+	// stack and that the stack is empty at the end of blocks; if not, the
+	// arguments of the first failure are no longer kept
+	private boolean simulate() {
+		for (Block b: m.blocks) {
+			List<Instr> stack = new ArrayList<>();
+			for (Instr x: b.instrs) {
+				if (early[x.id] != null) stack.addAll(Arrays.asList(early[x.id]));
+				if (x.op == Instr.Phi || x.op == Instr.Param || x.op == Instr.Const) continue;
+				int k = ready[x.id];
+				boolean ok = stack.size() >= k;
+				for (int i = 0; ok && i < k; i++) ok = stack.get(stack.size() - k + i) == x.args[i];
+				if (!ok) {
+					for (Instr a: x.args) kept[a.id] = false;
+					return false;
+				}
+				stack.subList(stack.size() - k, stack.size()).clear();
+				if (kept[x.id]) stack.add(x);
+			}
+			if (!stack.isEmpty()) {
+				for (Instr x: stack) kept[x.id] = false;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//---------------- slots ----------------
+
+	// Reverse postorder of the blocks
+	private void order() {
+		List<Block> post = new ArrayList<>();
+		Set<Block> seen = new HashSet<>();
+		Deque<Block> stack = new ArrayDeque<>();
+		Deque<Integer> next = new ArrayDeque<>();
+		Block entry = m.blocks.get(0);
+		stack.push(entry); next.push(0); seen.add(entry);
+		while (!stack.isEmpty()) {
+			Block b = stack.peek();
+			int i = next.pop();
+			if (i < b.succs.size()) {
+				next.push(i + 1);
+				Block s = b.succs.get(i);
+				if (seen.add(s)) { stack.push(s); next.push(0); }
+			} else { stack.pop(); post.add(b); }
+		}
+		Collections.reverse(post);
+		rpo = post;
+	}
+
+	private void liveness(int n) {
+		int nBlocks = 0;
+		for (Block b: m.blocks) nBlocks = Math.max(nBlocks, b.id + 1);
+		liveIn = new BitSet[nBlocks]; liveOut = new BitSet[nBlocks];
+		BitSet[] gen = new BitSet[nBlocks], kill = new BitSet[nBlocks], phiUses = new BitSet[nBlocks];
+		for (Block b: m.blocks) {
+			BitSet g = gen[b.id] = new BitSet(), k = kill[b.id] = new BitSet(), p = phiUses[b.id] = new BitSet();
+			for (Instr x: b.instrs) {
+				if (x.op != Instr.Phi)
+					for (Instr a: x.args) if (needsSlot(a) && !k.get(a.id)) g.set(a.id);
+				if (needsSlot(x)) k.set(x.id);
+			}
+			for (Block s: b.succs)
+				for (Instr x: s.instrs) {
+					if (x.op != Instr.Phi) break;
+					Instr a = x.args[s.preds.indexOf(b)];
+					if (needsSlot(x) && needsSlot(a)) p.set(a.id);
+				}
+			liveIn[b.id] = new BitSet(); liveOut[b.id] = new BitSet();
+		}
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int i = rpo.size() - 1; i >= 0; i--) {
+				Block b = rpo.get(i);
+				BitSet out = (BitSet)phiUses[b.id].clone();
+				for (Block s: b.succs) out.or(liveIn[s.id]);
+				BitSet in = (BitSet)out.clone();
+				in.andNot(kill[b.id]);
+				in.or(gen[b.id]);
+				if (!in.equals(liveIn[b.id]) || !out.equals(liveOut[b.id])) {
+					liveIn[b.id] = in; liveOut[b.id] = out; changed = true;
+				}
+			}
+		}
+	}
+
+	// Assign slots; returns the frame size
+	private int allocate(int n) {
+		slot = new int[n];
+		Arrays.fill(slot, -1);
+		int frame = m.meth.nPars;
+		int[] last = new int[n];	// index of the last use in the current block
+		for (Block b: rpo) {
+			BitSet busy = new BitSet();
+			BitSet in = liveIn[b.id];
+			for (int v = in.nextSetBit(0); v >= 0; v = in.nextSetBit(v + 1))
+				if (slot[v] >= 0) busy.set(slot[v]);
+			List<Instr> list = b.instrs;
+			for (int i = 0; i < list.size(); i++)
+				if (list.get(i).op != Instr.Phi)
+					for (Instr a: list.get(i).args) last[a.id] = i;
+			for (int pass = 0; pass < 2; pass++)	// phis that can share a slot with an argument first
+				for (Instr x: list) {
+					if (x.op != Instr.Phi) break;
+					if (!needsSlot(x) || slot[x.id] >= 0) continue;
+					int s = preferred(x, busy);
+					if (s < 0 && pass == 1) s = busy.nextClearBit(0);
+					if (s >= 0) { slot[x.id] = s; busy.set(s); frame = Math.max(frame, s + 1); }
+				}
+			for (int i = 0; i < list.size(); i++) {
+				Instr x = list.get(i);
+				if (x.op == Instr.Phi) continue;
+				for (Instr a: x.args)
+					if (needsSlot(a) && last[a.id] == i && !liveOut[b.id].get(a.id)) busy.clear(slot[a.id]);
+				if (needsSlot(x)) {
+					int s = x.op == Instr.Param ? x.val : preferred(x, busy);
+					if (s < 0) s = busy.nextClearBit(0);
+					slot[x.id] = s;
+					busy.set(s);
+					frame = Math.max(frame, s + 1);
+				}
+			}
+		}
+		return frame;
+	}
+
+	// A free slot that saves a copy into or out of the phi x: that of a phi
+	// whose argument x is, or that of an argument of x; or -1
+	private int preferred(Instr x, BitSet busy) {
+		if (x.op == Instr.Phi) {
+			for (Instr a: x.args)
+				if (needsSlot(a) && slot[a.id] >= 0 && !busy.get(slot[a.id])) return slot[a.id];
+		} else if (user[x.id].op == Instr.Phi) {
+			int s = slot[user[x.id].id];
+			if (s >= 0 && !busy.get(s)) return s;
+		}
+		return -1;
+	}
+
+	//---------------- emission ----------------
+
+	private void emit() {
+		Map<Block, Label> label = new HashMap<>();
+		for (Block b: m.blocks) label.put(b, new Label(code));
+		for (int i = 0; i < m.blocks.size(); i++) {
+			Block b = m.blocks.get(i), next = i + 1 < m.blocks.size() ? m.blocks.get(i + 1) : null;
+			label.get(b).here();
+			for (Instr x: b.instrs) {
+				if (early[x.id] != null) for (Instr a: early[x.id]) push(a);
+				if (x.op == Instr.Phi || x.op == Instr.Param || x.op == Instr.Const) continue;
+				for (int k = ready[x.id]; k < x.args.length; k++) push(x.args[k]);
+				switch (x.op) {
+					case Instr.Add:         code.put(Code.add); break;
+					case Instr.Sub:         code.put(Code.sub); break;
+					case Instr.Mul:         code.put(Code.mul); break;
+					case Instr.Div:         code.put(Code.div); break;
+					case Instr.Rem:         code.put(Code.rem); break;
+					case Instr.Shl:         code.put(Code.shl); break;
+					case Instr.Shr:         code.put(Code.shr); break;
+					case Instr.Neg:         code.put(Code.neg); break;
+					case Instr.GetStatic:   code.put(Code.getstatic); code.put2(x.val); break;
+					case Instr.PutStatic:   code.put(Code.putstatic); code.put2(x.val); break;
+					case Instr.GetField:    code.put(Code.getfield); code.put2(x.val); break;
+					case Instr.PutField:    code.put(Code.putfield); code.put2(x.val); break;
+					case Instr.ALoad:       code.put(Code.aload); break;
+					case Instr.AStore:      code.put(Code.astore); break;
+					case Instr.BALoad:      code.put(Code.baload); break;
+					case Instr.BAStore:     code.put(Code.bastore); break;
+					case Instr.ArrayLength: code.put(Code.arraylength); break;
+					case Instr.New:         code.put(Code.new_); code.put2(x.val); break;
+					case Instr.NewArray:    code.put(Code.newarray); code.put(x.val); break;
+					case Instr.Call: {
+						int k = Inliner.inline(code, x.method, globals, frame);
+						if (k < 0) code.putCall(x.val); else inlined = Math.max(inlined, k);
+						break;
+					}
+					case Instr.Read:        code.put(Code.read); break;
+					case Instr.BRead:       code.put(Code.bread); break;
+					case Instr.Print:       code.put(Code.print); break;
+					case Instr.BPrint:      code.put(Code.bprint); break;
+					case Instr.Return:      code.put(Code.exit); code.put(Code.return_); break;
+					case Instr.Trap:        code.put(Code.trap); code.put(x.val); break;
+					case Instr.Jump: {
+						Block s = b.succs.get(0);
+						copies(b, s);
+						if (s != next) code.jump(label.get(s));
+						break;
+					}
+					case Instr.If: {
+						Block t = b.succs.get(0), f = b.succs.get(1);
+						if (f == next) code.falseJump(inverse[x.val], label.get(t));
+						else {
+							code.falseJump(x.val, label.get(f));
+							if (t != next) code.jump(label.get(t));
+						}
+						break;
+					}
+				}
+				if (x.hasValue() && !kept[x.id]) {
+					if (uses[x.id] > 0) store(slot[x.id]); else code.put(Code.pop);
+				}
+			}
+		}
+	}
+
+	// Set the phis of s for the edge from b
+	private void copies(Block b, Block s) {
+		int k = s.preds.indexOf(b);
+		List<Instr> phis = new ArrayList<>();
+		for (Instr x: s.instrs) {
+			if (x.op != Instr.Phi) break;
+			Instr a = x.args[k];
+			if (needsSlot(x) && (a.op == Instr.Const || slot[a.id] != slot[x.id])) { push(a); phis.add(x); }
+		}
+		for (int i = phis.size() - 1; i >= 0; i--) store(slot[phis.get(i).id]);
+	}
+
+	private void push(Instr a) {
+		if (a.op == Instr.Const) {
+			if (a.val == -1) code.put(Code.const_m1);
+			else if (a.val >= 0 && a.val <= 5) code.put(Code.const0 + a.val);
+			else { code.put(Code.const_); code.put4(a.val); }
+		} else if (slot[a.id] < 4) code.put(Code.load0 + slot[a.id]);
+		else { code.put(Code.load); code.put(slot[a.id]); }
+	}
+
+	private void store(int s) {
+		if (s < 4) code.put(Code.store0 + s);
+		else { code.put(Code.store); code.put(s); }
+	}
+}
@@ -0,0 +1,70 @@
+/* MicroJava IR Methods
+   ====================
+The SSA form of one method body: its blocks, the first of which is the
+entry. The entry has no predecessors; it defines the parameters and the
+initial (zero) values of the other locals, and jumps to the code.
+Built by Builder, checked by Verifier and turned into code by Lowering;
+dump() prints it as text, e.g.
+  B1: <- B0 B3
+    v4 = phi v1 v9 : int
+    if lt v4, v2 -> B2 B4
+*/
+package MJ.IR;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import MJ.SymTab.Obj;
+
+public class Method {
+	public final Obj meth;
+	public final List<Block> blocks = new ArrayList<>();
+
+	public Method(Obj meth) {
+		this.meth = meth;
+	}
+
+	// Number the instructions in block order; returns their count
+	public int number() {
+		int n = 0;
+		for (Block b: blocks)
+			for (Instr x: b.instrs) x.id = n++;
+		return n;
+	}
+
+	public void dump(PrintStream out) {
+		number();
+		out.println("method " + meth.name + " (" + meth.nPars + " params) : " + Instr.typeName(meth.type));
+		for (Block b: blocks) {
+			StringBuilder sb = new StringBuilder(b + ":");
+			if (!b.preds.isEmpty()) {
+				sb.append(" <-");
+				for (Block p: b.preds) sb.append(' ').append(p);
+			}
+			out.println(sb);
+			for (Instr x: b.instrs) out.println("  " + format(x));
+		}
+	}
+
+	private static String format(Instr x) {
+		StringBuilder sb = new StringBuilder();
+		if (x.hasValue()) sb.append(x.op == Instr.Const ? "v" + x.id : x).append(" = ");
+		sb.append(Instr.opName[x.op]);
+		switch (x.op) {
+			case Instr.Const: case Instr.Param: case Instr.GetStatic: case Instr.PutStatic:
+			case Instr.GetField: case Instr.PutField: case Instr.New: case Instr.NewArray: case Instr.Trap:
+				sb.append(' ').append(x.val); break;
+			case Instr.Call:
+				sb.append(' ').append(x.method.name); break;
+			case Instr.If:
+				sb.append(' ').append(Instr.condName[x.val]); break;
+		}
+		for (int i = 0; i < x.args.length; i++) sb.append(i == 0 ? " " : ", ").append(x.args[i]);
+		if (x.isTerminator() && !x.block.succs.isEmpty()) {
+			sb.append(" ->");
+			for (Block s: x.block.succs) sb.append(' ').append(s);
+		}
+		if (x.hasValue()) sb.append(" : ").append(Instr.typeName(x.type));
+		return sb.toString();
+	}
+}
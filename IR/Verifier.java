@@ -0,0 +1,220 @@
+/* MicroJava IR Verifier
+   =====================
+Checks that a Method is well-formed SSA:
+- every block is reachable from the entry, which has no predecessors;
+  preds and succs agree, and the terminator has the right number of succs;
+- phis come first and have one argument per predecessor; the terminator
+  is last and the only one;
+- every argument is a value of this method whose definition dominates the
+  use (for a phi argument: the end of the corresponding predecessor);
+- operations have their number of arguments and fitting types.
+An error is reported as an IllegalStateException, since it is a bug of the
+compiler rather than of the program.
+*/
+package MJ.IR;
+
+import java.util.*;
+import MJ.CodeGen.Code;
+import MJ.SymTab.*;
+
+public class Verifier {
+	private final Method m;
+	private final Map<Block, Integer> order = new HashMap<>();	// reverse postorder number
+	private int[] idom;			// by reverse postorder number: that of the immediate dominator
+	private final Map<Instr, Integer> pos = new HashMap<>();	// index in its block
+
+	private Verifier(Method m) {
+		this.m = m;
+	}
+
+	public static void verify(Method m) {
+		new Verifier(m).run();
+	}
+
+	private void error(Block b, String msg) {
+		throw new IllegalStateException("IR of " + m.meth.name + ", " + b + ": " + msg);
+	}
+
+	private void run() {
+		if (m.blocks.isEmpty()) error(null, "no blocks");
+		m.number();
+		Set<Block> blocks = new HashSet<>(m.blocks);
+		Block entry = m.blocks.get(0);
+		if (!entry.preds.isEmpty()) error(entry, "entry has predecessors");
+		for (Block b: m.blocks) {
+			for (Block s: b.succs)
+				if (!blocks.contains(s) || count(s.preds, b) != count(b.succs, s)) error(b, "inconsistent edge to " + s);
+			for (Block p: b.preds)
+				if (!blocks.contains(p) || count(p.succs, b) != count(b.preds, p)) error(b, "inconsistent edge from " + p);
+			for (int i = 0; i < b.instrs.size(); i++) pos.put(b.instrs.get(i), i);
+		}
+		dominators(entry);
+		for (Block b: m.blocks) {
+			if (!order.containsKey(b)) error(b, "unreachable");
+			checkBlock(b);
+		}
+	}
+
+	private static int count(List<Block> list, Block b) {
+		int n = 0;
+		for (Block x: list) if (x == b) n++;
+		return n;
+	}
+
+	// Dominators by Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm"
+	private void dominators(Block entry) {
+		List<Block> post = new ArrayList<>();
+		Set<Block> seen = new HashSet<>();
+		Deque<Block> stack = new ArrayDeque<>();
+		Deque<Integer> next = new ArrayDeque<>();	// next successor to visit
+		stack.push(entry); next.push(0); seen.add(entry);
+		while (!stack.isEmpty()) {
+			Block b = stack.peek();
+			int i = next.pop();
+			if (i < b.succs.size()) {
+				next.push(i + 1);
+				Block s = b.succs.get(i);
+				if (seen.add(s)) { stack.push(s); next.push(0); }
+			} else { stack.pop(); post.add(b); }
+		}
+		int n = post.size();
+		Block[] rpo = new Block[n];
+		for (int i = 0; i < n; i++) { rpo[i] = post.get(n - 1 - i); order.put(rpo[i], i); }
+		idom = new int[n];
+		Arrays.fill(idom, -1);
+		idom[0] = 0;
+		for (boolean changed = true; changed; ) {
+			changed = false;
+			for (int i = 1; i < n; i++) {
+				int d = -1;
+				for (Block p: rpo[i].preds) {
+					Integer k = order.get(p);	// null if p is unreachable
+					if (k != null && idom[k] >= 0) d = d < 0 ? k : intersect(k, d);
+				}
+				if (d != idom[i]) { idom[i] = d; changed = true; }
+			}
+		}
+	}
+
+	private int intersect(int x, int y) {
+		while (x != y) {
+			while (x > y) x = idom[x];
+			while (y > x) y = idom[y];
+		}
+		return x;
+	}
+
+	// a dominates b
+	private boolean dominates(Block a, Block b) {
+		int x = order.get(a), y = order.get(b);
+		while (y > x) y = idom[y];
+		return y == x;
+	}
+
+	private void checkBlock(Block b) {
+		List<Instr> list = b.instrs;
+		if (list.isEmpty() || !list.get(list.size() - 1).isTerminator()) error(b, "no terminator");
+		boolean phis = true;
+		for (int i = 0; i < list.size(); i++) {
+			Instr x = list.get(i);
+			if (x.block != b) error(b, "v" + x.id + " belongs to " + x.block);
+			if (x.isTerminator() && i < list.size() - 1) error(b, "terminator before the end");
+			if (x.op == Instr.Phi) {
+				if (!phis) error(b, "phi after other instructions");
+			} else phis = false;
+			if (x.type == null) error(b, "v" + x.id + " has no type");
+			for (int k = 0; k < x.args.length; k++) {
+				Instr a = x.args[k];
+				if (a == null || !pos.containsKey(a) || !a.hasValue()) error(b, "bad argument of v" + x.id);
+				if (x.op == Instr.Phi) {
+					if (!dominates(a.block, b.preds.get(k))) error(b, "phi v" + x.id + ": v" + a.id + " does not dominate " + b.preds.get(k));
+				} else if (a.block == b ? pos.get(a) >= i : !dominates(a.block, b)) error(b, "v" + a.id + " does not dominate its use in v" + x.id);
+			}
+			checkInstr(b, x);
+		}
+	}
+
+	private static boolean hasValue(int op) {
+		switch (op) {
+			case Instr.PutStatic: case Instr.PutField: case Instr.AStore: case Instr.BAStore:
+			case Instr.Print: case Instr.BPrint:
+				return false;
+			default:
+				return !(op >= Instr.Jump);
+		}
+	}
+
+	private static boolean isNum(Instr x) {
+		return x.type.kind == Struct.Int || x.type.kind == Struct.Char;
+	}
+
+	// null is const 0 in the code, which leaves its type int
+	private static boolean isNull(Instr x) {
+		return x.type == Tab.nullType || x.op == Instr.Const && x.val == 0;
+	}
+
+	private static boolean isArr(Instr x) {
+		return x.type.kind == Struct.Arr || isNull(x);
+	}
+
+	private static boolean isObj(Instr x) {
+		return x.type.kind == Struct.Class || isNull(x);
+	}
+
+	private void checkInstr(Block b, Instr x) {
+		int nArgs, nSuccs = 0;
+		boolean ok = true;
+		Instr[] a = x.args;
+		switch (x.op) {
+			case Instr.Const: case Instr.Param: case Instr.GetStatic: case Instr.New: case Instr.Read: case Instr.BRead:
+				nArgs = 0; break;
+			case Instr.Phi:
+				nArgs = b.preds.size();
+				for (Instr y: a) ok &= isNum(y) == isNum(x) || isNull(y);
+				break;
+			case Instr.Add: case Instr.Sub: case Instr.Mul: case Instr.Div: case Instr.Rem: case Instr.Shl: case Instr.Shr:
+				nArgs = 2; ok = a.length == 2 && isNum(a[0]) && isNum(a[1]); break;
+			case Instr.Neg:
+				nArgs = 1; ok = a.length == 1 && isNum(a[0]); break;
+			case Instr.PutStatic:
+				nArgs = 1; break;
+			case Instr.GetField:
+				nArgs = 1; ok = a.length == 1 && isObj(a[0]); break;
+			case Instr.PutField:
+				nArgs = 2; ok = a.length == 2 && isObj(a[0]); break;
+			case Instr.ALoad: case Instr.BALoad:
+				nArgs = 2; ok = a.length == 2 && isArr(a[0]) && isNum(a[1]); break;
+			case Instr.AStore: case Instr.BAStore:
+				nArgs = 3; ok = a.length == 3 && isArr(a[0]) && isNum(a[1]); break;
+			case Instr.ArrayLength:
+				nArgs = 1; ok = a.length == 1 && isArr(a[0]); break;
+			case Instr.NewArray:
+				nArgs = 1; ok = a.length == 1 && isNum(a[0]) && x.type.kind == Struct.Arr; break;
+			case Instr.Call:
+				nArgs = x.method == null ? -1 : x.method.nPars;
+				ok = x.method != null && x.type == x.method.type;
+				break;
+			case Instr.Print: case Instr.BPrint:
+				nArgs = 2; ok = a.length == 2 && isNum(a[0]) && isNum(a[1]); break;
+			case Instr.Jump:
+				nArgs = 0; nSuccs = 1; break;
+			case Instr.If:
+				nArgs = 2; nSuccs = 2;
+				ok = a.length == 2 && x.val >= Code.eq && x.val <= Code.ge
+					&& (isNum(a[0]) && isNum(a[1]) || (!isNum(a[0]) || isNull(a[0])) && (!isNum(a[1]) || isNull(a[1])) && x.val <= Code.ne);
+				break;
+			case Instr.Return:
+				nArgs = m.meth.type == Tab.noType ? 0 : 1; break;
+			case Instr.Trap:
+				nArgs = 0; break;
+			default:
+				error(b, "unknown operation " + x.op);
+				return;
+		}
+		if (a.length != nArgs) error(b, Instr.opName[x.op] + " v" + x.id + " has " + a.length + " arguments");
+		if (!ok) error(b, Instr.opName[x.op] + " v" + x.id + ": bad operand types");
+		if (x.isTerminator() && b.succs.size() != nSuccs) error(b, Instr.opName[x.op] + " with " + b.succs.size() + " successors");
+		if (x.hasValue() != (x.op == Instr.Call ? x.method.type != Tab.noType : hasValue(x.op)))
+			error(b, Instr.opName[x.op] + " v" + x.id + (x.hasValue() ? " must not" : " must") + " have a value");
+	}
+}
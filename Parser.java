@@ -3,11 +3,23 @@
 */
 package MJ;
 
+import java.io.PrintStream;
 import java.text.Normalizer.Form;
 import java.util.*;
 
+import MJ.CodeGen.CallGraph;
 import MJ.CodeGen.Code;
+import MJ.CodeGen.Inliner;
+import MJ.CodeGen.Label;
+import MJ.CodeGen.Loops;
+import MJ.CodeGen.Operand;
+import MJ.CodeGen.Peephole;
+import MJ.IR.Builder;
+import MJ.IR.Lowering;
+import MJ.IR.Method;
+import MJ.IR.Verifier;
 import MJ.SymTab.Obj;
+import MJ.SymTab.Scope;
 import MJ.SymTab.Struct;
 import MJ.SymTab.Tab;
 
@@ -57,48 +69,107 @@ public class Parser {
 		"program", "read", "return", "void", "while", "eof"
 		};
 
-	private static Token t;			// current token (recently recognized)
-	private static Token la;		// lookahead token
-	private static int sym;			// always contains la.kind
-	public  static int errors;  // error counter
-	private static int errDist;	// no. of correctly recognized tokens since last error
-	private static Obj curMethod;
+	private Token t;			// current token (recently recognized)
+	private Token la;			// lookahead token
+	private int sym;			// always contains la.kind
+	public  int errors;		// error counter
+	public  int tokens;		// number of tokens scanned
+	private int errDist;	// no. of correctly recognized tokens since last error
+	private Obj curMethod;
+	private int inlineVars;	// locals that inlined calls need beyond those of curMethod
+	private Builder ir;		// SSA form of curMethod while its body is parsed (see useIR), or null
+	public  boolean useIR = Builder.enabled;	// generate the code of every method from its SSA form
+	public  List<Method> irMethods;	// if not null, receives the SSA form of every method (see TestIR)
+	public  Scope globals;	// program scope after parse() (see Snapshot)
+
+	private BitSet firstExpr, firstStat, syncStat, syncDecl;
+
+	public  final Scanner scanner;	// this compilation's scanner, symbol table and code buffer
+	public  final Tab tab;
+	public  final Code code;
+	public  final PrintStream out;	// stream for diagnostics
+
+	//------------------- a parser is one compilation of one source ---------------
+	public Parser(Scanner scanner, PrintStream out) {
+		this.scanner = scanner;
+		this.out = out;
+		scanner.out = out;
+		tab = new Tab(this);
+		code = new Code(this);
+	}
 
-	private static BitSet firstExpr, firstStat, syncStat, syncDecl;
+	public Parser(Scanner scanner) {
+		this(scanner, System.out);
+	}
 
 	//------------------- auxiliary methods ----------------------
-	private static void scan() {
+	private void scan() {
+		Token tmp = t;
 		t = la;
-		la = Scanner.next();
+		la = tmp; // reuse the old token object for the new lookahead
+		scanner.next(la);
 		sym = la.kind;
 		errDist++;
+		tokens++;
 		
-		// System.out.print("line " + la.line + ", col " + la.col + ": " + name[sym]);
+		// System.out.print("line " + scanner.line(la.pos) + ", col " + scanner.col(la.pos) + ": " + name[sym]);
 		// if (sym == ident) System.out.print(" (" + la.val + ")");
 		// if (sym == number || sym == charCon) System.out.print(" (" + la.numVal + ")");
 		// System.out.println();
 	}
 
-	private static void check(int expected) {
+	private void check(int expected) {
 		if (sym == expected) scan();
 		else error(name[expected] + " expected");
 	}
 
-	public static void error(String msg) { // syntactic error at token la
+	public void error(String msg) { // syntactic error at token la
 		if (errDist >= 3) {
-			System.out.println("-- line " + la.line + " col " + la.col + ": " + msg);
+			out.println("-- line " + scanner.line(la.pos) + " col " + scanner.col(la.pos) + ": " + msg);
 			errors++;
 		}
 		errDist = 0;
 	}
 
+	//------------------- code generation ----------------------
+	// The code of a method body goes to the code buffer, or with useIR to the
+	// IR builder, which is lowered to the code buffer at the end of the method.
+
+	private void load(Operand x) {
+		if (ir != null) ir.load(x); else code.load(x);
+	}
+
+	private void assignTo(Operand x) {
+		if (ir != null) ir.assignTo(x); else code.assignTo(x);
+	}
+
+	private void falseJump(int op, Label l) {
+		if (ir != null) ir.falseJump(op, l); else code.falseJump(op, l);
+	}
+
+	private void jump(Label l) {
+		if (ir != null) ir.jump(l); else code.jump(l);
+	}
+
+	private void here(Label l) {
+		if (ir != null) ir.here(l); else l.here();
+	}
+
+	private void ret() {
+		if (ir != null) ir.ret();
+		else {
+			code.put(Code.exit);
+			code.put(Code.return_);
+		}
+	}
+
 	//-------------- parsing methods (in alphabetical order) -----------------
 
 	// Program = "program" ident {ConstDecl | ClassDecl | VarDecl} '{' {MethodDecl} '}'.
-	private static void Program() {
+	private void Program() {
 		check(program_);
 		check(ident);
-		Tab.openScope();
+		tab.openScope();
 		while (true){
 			if (sym == final_){ ConstDecl(); 
 			} else if (sym == class_) { ClassDecl(); 
@@ -119,19 +190,22 @@ public class Parser {
 			MethodDecl();	
 		}
 		check(rbrace);
-		Tab.dumpScope(Tab.curScope.locals);
-		Tab.closeScope();
+		if (errors == 0) CallGraph.prune(code, tab.curScope.locals);
+		tab.dumpScope(tab.curScope.locals);
+		code.dataSize = tab.curScope.nVars;
+		globals = tab.curScope;
+		tab.closeScope();
 		
 		
 	}
 
 	//ConstDecl = "final" Type ident "=" (number | charConst) ";"
-	static private void ConstDecl(){
+	private void ConstDecl(){
 		check(final_);
 		Struct type = Type();
 		
 		check(ident);
-		Obj obj = Tab.insert(Obj.Con, t.val, type);
+		Obj obj = tab.insert(Obj.Con, t.val, type);
 		check(assign);
 		if (sym == number){
 			scan();
@@ -146,129 +220,221 @@ public class Parser {
 	}
 
 	//Type = ident ["[" "]"].
-	static private Struct Type(){
+	private Struct Type(){
 		check(ident);
-		Obj obj = Tab.find(t.val);
+		Obj obj = tab.find(t.val);
 		Struct type = obj.type;
 		if (sym == lbrack){
 			scan();
 			check(rbrack);
-			type = new Struct(Struct.Arr, type);
+			type = type.arrayType();
 		}
 		return type;
 	}
 
 	//FormPars = Type ident {"," Type ident}.
-	static private void FormPars() {
+	private void FormPars() {
 		Struct type = Type();
 		check(ident);
-		Tab.insert(Obj.Var, t.val, type);
+		tab.insert(Obj.Var, t.val, type);
 		while (true) {
 			if (sym == comma){
 				scan();
 				type = Type();
 				check(ident);
-				Tab.insert(Obj.Var, t.val, type);
+				tab.insert(Obj.Var, t.val, type);
 			} else break;
 		}
 	}
 	
 	//ActPars = "(" [ Expr {"," Expr} ] ")".
-	static void ActPars(){
+	void ActPars(){
 		check(lpar);
 		if (sym == minus | sym == ident | sym == number | sym == charCon | sym == new_ | sym == lpar){
-			Expr();
+			load(Expr());
 			while (true){
 				if (sym == comma){
 					scan();
-					Expr();
+					load(Expr());
 				} else break;
 			}
 		}
 		check(rpar);
 	}
+
+	// Call of the method m with the ActPars that follow; returns the result
+	private Operand Call(Operand m){
+		ActPars();
+		if (m.kind != Operand.Meth) {
+			error("called object is not a method");
+			return new Operand(Operand.Stack, 0, Tab.noType);
+		}
+		if (m.obj == Tab.lenObj) {
+			if (ir != null) ir.arrayLength(); else code.put(Code.arraylength);
+		} else if (m.obj != Tab.chrObj && m.obj != Tab.ordObj) {
+			if (ir != null) ir.call(m.obj);	// inlined by Lowering
+			else {
+				int n = Inliner.inline(code, m.obj, tab.curScope.outer.locals, tab.curScope.nVars);
+				if (n < 0) code.putCall(m.adr); else inlineVars = Math.max(inlineVars, n);
+			}
+		}
+		return new Operand(Operand.Stack, 0, m.type);
+	}
 	//Factor = Designator [ActPars] | number | charConst | "new" ident ["[" Expr "]"] | "(" Expr ")".
-	private static void Factor(){
-		if (sym == ident){	Designator(); if (sym == lpar) {ActPars(); } 
-		} else if (sym == number | sym == charCon) { scan();
+	private Operand Factor(){
+		Operand x;
+		if (sym == ident){	x = Designator(); if (sym == lpar) { x = Call(x); } 
+		} else if (sym == number) { scan(); x = new Operand(t.numVal);
+		} else if (sym == charCon) { scan(); x = new Operand(Operand.Con, t.numVal, Tab.charType);
 		} else if (sym == new_) { 
 			scan();
 			check(ident);
-			Obj obj = Tab.find(t.val);
+			Obj obj = tab.find(t.val);
+			Struct type = obj.type;
+			if (obj.kind != Obj.Type) error("type expected");
 			if (sym == lbrack){
 				scan();
-				Expr();
+				load(Expr());
 				check(rbrack);
+				if (ir != null) ir.newArray(type);
+				else {
+					code.put(Code.newarray);
+					if (type == Tab.charType) code.put(0); else code.put(1);
+				}
+				type = type.arrayType();
+			} else {
+				if (type.kind != Struct.Class) error("class type expected");
+				if (ir != null) ir.newObject(type);
+				else {code.put(Code.new_); code.put2(type.nFields * 4);}
 			}
+			x = new Operand(Operand.Stack, 0, type);
 		} else if (sym == lpar){
 			scan();
-			Expr();
+			x = Expr();
 			check(rpar);
-		} else error("Designator, number, charcon, new, or lpar expected");
-
+		} else {
+			error("Designator, number, charcon, new, or lpar expected");
+			x = new Operand(Operand.Stack, 0, Tab.noType);
+		}
+		return x;
 	}
 
 	//Mulop = "*" | "/" | "%".
-	static private void Mulop(){
+	private int Mulop(){
+		int op = Code.mul;
 		if (sym == times | sym == slash | sym == rem){
+			if (sym == slash) op = Code.div; else if (sym == rem) op = Code.rem;
 			scan();
 		} else error("Times, slash or rem expected");
+		return op;
 	}
 
 	//Term = Factor {Mulop Factor}.
-	private static void Term(){
-
-		Factor();
-		while (sym == times | sym == slash | sym == rem) { Mulop(); Factor(); }
+	// A constant left operand is not loaded before the right one is known (see Code.arith).
+	private Operand Term(){
+		Operand x = Factor();
+		while (sym == times | sym == slash | sym == rem) {
+			int op = Mulop();
+			if (x.kind != Operand.Con) load(x);
+			int mark = code.pc;
+			Operand y = Factor();
+			x = ir != null ? ir.arith(op, x, y) : code.arith(op, x, y, mark);
+		}
+		return x;
 	}
 
 	//Addop = "+" | "-".
-	private static void Addop(){
+	private int Addop(){
+		int op = Code.add;
 		if (sym == plus | sym == minus){
+			if (sym == minus) op = Code.sub;
 			scan();
 		} else error("plus or minus expected");
+		return op;
 	}
 	//Expr = ["-"] Term {Addop Term}.
-	private static void Expr(){
-		if (sym == minus){ scan(); } 
-		Term();
-		while (sym == plus | sym == minus) { Addop(); Term(); }
+	private Operand Expr(){
+		Operand x;
+		if (sym == minus){
+			scan();
+			x = Term();
+			if (x.kind == Operand.Con) x.val = -x.val;
+			else {
+				load(x);
+				if (ir != null) ir.neg(); else code.put(Code.neg);
+			}
+		} else x = Term();
+		while (sym == plus | sym == minus) {
+			int op = Addop();
+			if (x.kind != Operand.Con) load(x);
+			int mark = code.pc;
+			Operand y = Term();
+			x = ir != null ? ir.arith(op, x, y) : code.arith(op, x, y, mark);
+		}
+		return x;
 	}
 
 	//Designator = ident {"." ident | "[" Expr "]"}.
-	static private void Designator(){
+	private Operand Designator(){
 		check(ident);
-		Obj obj = Tab.find(t.val);
+		Operand x = new Operand(tab.find(t.val), this);
 		while (true){
 			if (sym == period){
 				scan();
 				check(ident);
-				obj = Tab.find(t.val);
+				if (x.type.kind == Struct.Class) {
+					load(x);
+					Obj fld = tab.findField(t.val, x.type);
+					if (fld == Tab.noObj) error(t.val + " is not a field");
+					x.kind = Operand.Fld; x.adr = fld.adr; x.type = fld.type;
+				} else {
+					error("dereferenced object is not a class");
+					x.type = Tab.noType;
+				}
 			} else if (sym == lbrack){
 				scan();
-				Expr();
+				load(x);
+				load(Expr());
 				check(rbrack);
+				if (x.type.kind == Struct.Arr) x.type = x.type.elemType;
+				else {
+					error("indexed object is not an array");
+					x.type = Tab.noType;
+				}
+				x.kind = Operand.Elem;
 			} else break;
 		}
+		return x;
 	}
 	
 	//Relop = "==" | "!=" | ">" | ">=" | "<" | "<=".
-	static private void Relop(){
+	private int Relop(){
+		int op = Code.eq;
 		if (sym == eql | sym == neq | sym == gtr | sym == geq | sym == lss | sym == leq) {
+			switch (sym) {
+				case neq: op = Code.ne; break;
+				case gtr: op = Code.gt; break;
+				case geq: op = Code.ge; break;
+				case lss: op = Code.lt; break;
+				case leq: op = Code.le; break;
+			}
 			scan();
 		} else error("==, !=, >, >=, <, <= expected");
+		return op;
 	}
 	//Condition = Expr Relop Expr.
-	static private void Condition(){
-		Expr();
-		Relop();
-		Expr();
+	// Leaves both operands on the stack and returns the compare operator.
+	private int Condition(){
+		load(Expr());
+		int op = Relop();
+		load(Expr());
+		return op;
 	}
 
 	//Statement = Designator ("=" Expr | ActPars) ";" | "if" "(" Condition ")" Statement ["else" Statement]
 	// | "while" "(" Condition ")" Statement | "return" [Expr] ";" | "read" "(" Designator ")" ";" 
 	// | "print" "(" Expr ["," number] ")" ";" | Block | ";".
-	static private void Statement(){
+	private void Statement(){
 		if (!firstStat.get(sym)) {
 			error("invalid start of statement");
 			while (!syncStat.get(sym)) scan();
@@ -277,12 +443,15 @@ public class Parser {
 
 		switch (sym){
 			case ident: 
-				Designator();
+				Operand x = Designator();
 				if (sym == assign) {
 					scan();
-					Expr();
+					load(Expr());
+					assignTo(x);
 				} else if (sym == lpar){ 
-					ActPars();
+					if (Call(x).type != Tab.noType) {
+						if (ir != null) ir.discard(); else code.put(Code.pop);
+					}
 				} else error("assign or lpar expected");
 				check(semicolon);
 				break;
@@ -290,35 +459,49 @@ public class Parser {
 			case if_:
 				scan();
 				check(lpar);
-				Condition();
+				Label skip = new Label(code);
+				falseJump(Condition(), skip);
 				check(rpar);
 				Statement();
 				if (sym == else_){
 					scan();
+					Label end = new Label(code);
+					jump(end);
+					here(skip);
 					Statement();
-				}
+					here(end);
+				} else here(skip);
 				break;
 			
 			case while_:
 				scan();
+				Label top = new Label(code);
+				here(top);
 				check(lpar);
-				Condition();
+				skip = new Label(code);
+				falseJump(Condition(), skip);
 				check(rpar);
 				Statement();
+				jump(top);
+				here(skip);
 				break;
 			
 			case return_:
 				scan();
 				if (sym == minus | sym == ident | sym == number | sym == charCon | sym == new_ | sym == lpar){
-					Expr();
+					load(Expr());
 				}
+				ret();
 				check(semicolon);
 				break;
 			
 			case read_:
 				scan();
 				check(lpar);
-				Designator();
+				x = Designator();
+				if (ir != null) ir.read(x.type);
+				else if (x.type == Tab.charType) code.put(Code.bread); else code.put(Code.read);
+				assignTo(x);
 				check(rpar);
 				check(semicolon);
 				break;
@@ -327,9 +510,17 @@ public class Parser {
 				scan();
 				check(lpar);
 				if (sym == minus | sym == ident | sym == number | sym == charCon | sym == new_ | sym == lpar){
-					Expr();
-					if (sym == comma | sym == number) {scan();
-					} else error("comma or number expected");
+					x = Expr();
+					load(x);
+					int width = 0;
+					if (sym == comma) {
+						scan();
+						check(number);
+						width = t.numVal;
+					}
+					load(new Operand(width));
+					if (ir != null) ir.print(x.type);
+					else if (x.type == Tab.charType) code.put(Code.bprint); else code.put(Code.print);
 				}
 				check(rpar);
 				check(semicolon);
@@ -350,7 +541,7 @@ public class Parser {
 	}
 	
 	//Block = "{" {Statement} "}".
-	static private void Block(){
+	private void Block(){
 		check(lbrace);
 		while (sym != rbrace && sym != eof) {
 			Statement();
@@ -358,40 +549,41 @@ public class Parser {
 		check(rbrace);
 	}
 	//ClassDecl = "class" ident "{" {VarDecl} "}".	
-	static private void ClassDecl(){
+	private void ClassDecl(){
 		Struct type = new Struct(Struct.Class);
 		check(class_);
 		check(ident);
 
-		Tab.insert(Obj.Type, t.val, type);
+		tab.insert(Obj.Type, t.val, type);
 		check(lbrace);
 	
-		Tab.openScope();
+		tab.openScope();
 
 		while (sym == ident) VarDecl();
 		check(rbrace);
 
-		type.fields = Tab.curScope.locals;
-		type.nFields = Tab.curScope.nVars;
-		Tab.closeScope();
+		type.fields = tab.curScope.locals;
+		type.fieldScope = tab.curScope;
+		type.nFields = tab.curScope.nVars;
+		tab.closeScope();
 	}
 
 	//VarDecl = Type ident {"," ident } ";".
-	static private void VarDecl(){	
+	private void VarDecl(){	
 		Struct type = Type();
 		check(ident);
-		Tab.insert(Obj.Var, t.val, type);
+		tab.insert(Obj.Var, t.val, type);
 		while (true){
 			if (sym == comma){
 				scan();
 				check(ident);
-				Tab.insert(Obj.Var, t.val, type);
+				tab.insert(Obj.Var, t.val, type);
 			} else break;
 		}
 		check(semicolon);
 	}
 	//MethodDecl = (Type | "void") ident "(" [FormPars] ")" {VarDecl} Block.
-	static private void MethodDecl(){
+	private void MethodDecl(){
 		Struct type = Tab.noType;
 
 		if (sym == void_){
@@ -400,18 +592,20 @@ public class Parser {
 		} else { error("void or function type expected"); }	
 		
 		check(ident);
-		curMethod = Tab.insert(Obj.Meth, t.val, type);
+		curMethod = tab.insert(Obj.Meth, t.val, type);
 
-		Tab.openScope();
+		tab.openScope();
 
-		if (name.equals("main")){
-			Code.mainPc = Code.pc;
+		boolean isMain = "main".equals(t.val);
+		if (isMain){
+			code.mainPc = code.pc;
 			if (curMethod.type != Tab.noType) error("method main must be void");
-			if (curMethod.nPars != 0) error("main must not have parameters");
 		}
 
 		check(lpar);
 		if (sym == ident){ FormPars(); }
+		curMethod.nPars = tab.curScope.nVars;
+		if (isMain && curMethod.nPars != 0) error("main must not have parameters");
 		check(rpar);
 		
 		while (true){
@@ -419,23 +613,47 @@ public class Parser {
 			} else break;
 		}
 
-		curMethod.locals = Tab.curScope.locals;
-		curMethod.adr = Code.pc;
-		Code.put(Code.enter);
-		Code.put(curMethod.nPars);
-		Code.put(Tab.curScope.nVars);
+		curMethod.locals = tab.curScope.locals;
+		curMethod.adr = code.pc;
+		code.put(Code.enter);
+		code.put(curMethod.nPars);
+		code.put(tab.curScope.nVars);
+		int body = code.pc;
+		inlineVars = 0;
+		if (useIR) ir = new Builder(this, curMethod, tab.curScope.nVars);
 		Block();	
 		if (curMethod.type == Tab.noType){
-			Code.put(Code.exit);
-			Code.put(Code.return_);
+			ret();
 		} else {//end of function reached without return statement
-			Code.put(Code.trap); Code.put(1);
+			if (ir != null) ir.trap(1);
+			else {code.put(Code.trap); code.put(1);}
 		}
-		Tab.closeScope();
+		int frame = tab.curScope.nVars + inlineVars;
+		if (ir != null) frame = lowerIR();
+		frame += Loops.optimize(code, body, frame);
+		Peephole.optimize(code, body, curMethod);
+		if (frame != tab.curScope.nVars) code.put(body - 1, frame);	// frame size of enter
+		tab.closeScope();
 
 	}
 	
-	public static void parse() {
+	// Generate the code of the body of curMethod from its SSA form; returns the frame size
+	private int lowerIR() {
+		Method m = ir.finish();
+		ir = null;
+		if (errors > 0) return tab.curScope.nVars;
+		Verifier.verify(m);
+		if (Builder.dump) m.dump(out);
+		if (irMethods != null) irMethods.add(m);
+		int n = Lowering.lower(m, code, tab.curScope.outer.locals);
+		if (n < 0) {
+			error("method " + curMethod.name + " needs more than 255 local slots");
+			return tab.curScope.nVars;
+		}
+		return Math.max(n, tab.curScope.nVars);
+	}
+
+	public void parse() {
 		BitSet s;
 		// initialize first/sync sets
 		s = new BitSet(64); firstExpr = s;
@@ -453,13 +671,14 @@ public class Parser {
 
 
 		// start parsing
-		Tab.init();
-		errors = 0; errDist = 3;
+		t = new Token(); la = new Token();
+		tab.init();
+		errors = 0; errDist = 3; ir = null;
 		scan();
 		Program();
 		if (sym != eof) error("end of file found before end of program");
-		//if (Code.mainPc < 0) error("program contains no 'main' method");
-		//Tab.dumpScope(Tab.curScope.locals);
+		//if (code.mainPc < 0) error("program contains no 'main' method");
+		//tab.dumpScope(tab.curScope.locals);
 	}
 
 }
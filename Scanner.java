@@ -3,6 +3,11 @@
 */
 package MJ;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 public class Scanner {
 	private static final char eofCh = '\u0080';
 	private static final char eol = '\n';
@@ -44,178 +49,479 @@ public class Scanner {
 		void_     = 34,
 		while_    = 35,
 		eof       = 36;
-	private static final String key[] = { // sorted list of keywords
+	private static final String key[] = { // keywords, indexed by token code - class_
 		"class", "else", "final", "if", "new", "print",
 		"program", "read", "return", "void", "while"
 	};
-	private static final int keyVal[] = {
-		class_, else_, final_, if_, new_, print_,
-		program_, read_, return_, void_, while_
-	};
 
-	private static char ch;			// lookahead character
-	public  static int col;			// current column
-	public  static int line;		// current line
-	private static int pos;			// current position from start of source file
-	private static Reader in;  	// source file reader
-	private static char[] lex;	// current lexeme (token string)
+	public  static boolean wordScan = true;	// mapped input: skip blanks, comments and names 8 bytes at a time
+
+	public  PrintStream out = System.out;	// stream for diagnostics
+	private ByteBuffer whole;	// parallel mode: source file, until it has been cut into chunks
+	private int nThreads;		// parallel mode: number of threads for lexing the chunks
+	private Chunk[] chunks;	// parallel mode: pre-lexed token chunks, else null
+	private int chunkIdx;		// current chunk in chunks
+	private int tokIdx;			// next token in chunks[chunkIdx]
+
+	private char ch;			// lookahead character
+	private int pos;			// current position from start of source file (in chars)
+	private int[] lineStart;	// lineStart[i] = pos of the eol that starts line i+1 (lineStart[0] = 0)
+	private int nLines;		// number of lines seen so far (entries in lineStart)
+	private Reader in;  		// source file reader
+	private ByteBuffer buf;	// mapped source file (null when reading from in)
+	private int bp;				// index of next byte in buf
+	private int bufLen;		// number of bytes in buf
+	private char low;			// mapped input: second half of a surrogate pair still to be returned, or 0
+	private char[] lex;		// current lexeme (token string)
+	private String[] names;	// identifier table (open addressing, size is a power of 2)
+	private int nNames;		// number of entries in names
 
 	//----- ch = next input character
-	private static void nextCh() {
+	private void nextCh() {
+		if (buf != null) {
+			pos++;
+			if (low != 0) {ch = low; low = 0; return;}
+			if (bp >= bufLen) {ch = eofCh; return;}
+			int b = buf.get(bp++);
+			if (b >= 0) {
+				ch = (char)b;
+				if (ch == eol) newLine();
+			} else ch = utf8Ch(b);
+			return;
+		}
 		try {
-			ch = (char)in.read(); col++; pos++;
-			if (ch == eol) {line++; col = 0;}
+			ch = (char)in.read(); pos++;
+			if (ch == eol) newLine();
 			else if (ch == '\uffff') ch = eofCh;
 		} catch (IOException e) {
 			ch = eofCh;
 		}
 	}
 
-	//--------- Initialize scanner
-	public static void init(Reader r) {
+	//----- record that the eol at pos starts a new line
+	private void newLine() {
+		if (nLines == lineStart.length) lineStart = Arrays.copyOf(lineStart, 2 * nLines);
+		lineStart[nLines++] = pos;
+	}
+
+	//----- decode the rest of a UTF-8 sequence that starts with the byte b (b < 0);
+	// a 4-byte sequence gives a surrogate pair as a Reader does (low is returned next)
+	private char utf8Ch(int b) {
+		int n, c;
+		if ((b & 0xE0) == 0xC0) {n = 1; c = b & 0x1F;}
+		else if ((b & 0xF0) == 0xE0) {n = 2; c = b & 0x0F;}
+		else if ((b & 0xF8) == 0xF0) {n = 3; c = b & 0x07;}
+		else return '\ufffd';
+		while (n > 0 && bp < bufLen && (buf.get(bp) & 0xC0) == 0x80) {
+			c = (c << 6) | (buf.get(bp++) & 0x3F); n--;
+		}
+		if (n > 0) return '\ufffd';
+		if (c >= 0x10000) {
+			if (c > 0x10FFFF) return '\ufffd';
+			low = Character.lowSurrogate(c);
+			return Character.highSurrogate(c);
+		}
+		return (char)c;
+	}
+
+	//----- word-at-a-time (SWAR) skipping in the mapped buffer.
+	// A long holds 8 source bytes (little endian, so the lowest byte comes first);
+	// a byte of the mask below has its high bit set where the condition holds.
+	private static final long ONES = 0x0101010101010101L, HIGHS = 0x8080808080808080L;
+	private static final long BLANKS = 0x20 * ONES, EOLS = eol * ONES;
+
+	// bytes of w that are not zero
+	private static long nonZero(long w) {
+		return (((w & ~HIGHS) + ~HIGHS) | w) & HIGHS;
+	}
+
+	// number of consecutive ' ' bytes starting at buf[bp]
+	private int blankRun() {
+		int i = bp;
+		while (i + 8 <= bufLen) {
+			long m = nonZero(buf.getLong(i) ^ BLANKS);
+			if (m != 0) return i - bp + (Long.numberOfTrailingZeros(m) >>> 3);
+			i += 8;
+		}
+		while (i < bufLen && buf.get(i) == ' ') i++;
+		return i - bp;
+	}
+
+	// number of ASCII bytes other than eol starting at buf[bp]
+	private int lineRun() {
+		int i = bp;
+		while (i + 8 <= bufLen) {
+			long w = buf.getLong(i);
+			long m = ~nonZero(w ^ EOLS) & HIGHS | w & HIGHS;
+			if (m != 0) return i - bp + (Long.numberOfTrailingZeros(m) >>> 3);
+			i += 8;
+		}
+		while (i < bufLen && buf.get(i) >= 0 && buf.get(i) != eol) i++;
+		return i - bp;
+	}
+
+	// consume n ASCII bytes (no eol) without looking at them
+	private void skip(int n) {
+		bp += n; pos += n;
+	}
+
+	//--------- Create a scanner reading from r
+	public Scanner(Reader r) {
 		in = new BufferedReader(r);
+		start();
+	}
+
+	//--------- Create a scanner for a memory-mapped source file (ASCII or UTF-8)
+	public Scanner(Path path) throws IOException {
+		this(map(path));
+	}
+
+	//--------- Create a scanner for a memory-mapped source file that is lexed
+	// in parallel by nThreads threads when the first token is requested.
+	// Files are cut into chunks right after an eol byte: comments and char
+	// constants end at an eol, so no token spans a cut, and 0x0A never occurs
+	// inside a multi-byte UTF-8 sequence. next() then returns the tokens of
+	// all chunks in order, with the same positions a single scanner would
+	// report. Diagnostics about malformed numbers and char constants are
+	// printed while lexing, i.e. before any parser messages.
+	public Scanner(Path path, int nThreads) throws IOException {
+		ByteBuffer b = map(path);
+		if (Math.min(nThreads, b.limit() / minChunkSize) <= 1) {
+			buf = b; bufLen = b.limit();
+			start();
+		} else {
+			whole = b; this.nThreads = nThreads;
+		}
+	}
+
+	//--------- Create a scanner reading ASCII or UTF-8 bytes from b (little endian order)
+	private Scanner(ByteBuffer b) {
+		buf = b;
+		bp = 0; bufLen = b.limit();
+		start();
+	}
+
+	private void start() {
 		lex = new char[64];
-		line = 1; col = 0;
+		names = new String[1024]; nNames = 0;
+		lineStart = new int[256]; nLines = 1;
+		pos = 0;
 		nextCh();
 	}
 
+	private static ByteBuffer map(Path path) throws IOException {
+		ByteBuffer b;
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		return b.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	//--------- Cut whole into chunks and lex them in parallel
+	private void lexChunks() {
+		ByteBuffer b = whole;
+		int len = b.limit();
+		int n = Math.min(nThreads, len / minChunkSize);
+		int[] bounds = new int[n + 1];
+		for (int i = 1; i < n; i++) {
+			int p = Math.max(bounds[i-1], (int)((long)len * i / n));
+			while (p < len && b.get(p) != eol) p++;
+			bounds[i] = Math.min(p + 1, len);
+		}
+		bounds[n] = len;
+		Chunk[] c = new Chunk[n];
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				ByteBuffer slice = b.slice(bounds[i], bounds[i+1] - bounds[i]).order(ByteOrder.LITTLE_ENDIAN);
+				int k = i;
+				tasks.add(pool.submit(() -> {
+					Scanner s = new Scanner(slice);
+					s.out = out;
+					c[k] = new Chunk(s, k == n - 1);
+				}));
+			}
+			for (ForkJoinTask<?> task: tasks) task.join();
+		} finally {
+			pool.shutdown();
+		}
+		// stitch: shift token and line positions of each chunk by the chars of its predecessors
+		int[] lines = new int[256]; int nl = 1;
+		int offset = 0;
+		for (Chunk ch: c) {
+			if (offset != 0) for (int i = 0; i < ch.n; i++) ch.pos[i] += offset;
+			if (nl + ch.nLines > lines.length) lines = Arrays.copyOf(lines, 2 * (nl + ch.nLines));
+			for (int i = 1; i < ch.nLines; i++) lines[nl++] = ch.lineStart[i] + offset;
+			offset += ch.nChars;
+		}
+		whole = null;
+		chunks = c; chunkIdx = 0; tokIdx = 0;
+		lineStart = lines; nLines = nl;
+	}
+
+	private static final int minChunkSize = 1 << 20;	// files below 1 MB are lexed sequentially
+
+	//--------- Tokens of one chunk of a source file, lexed by their own scanner
+	private static final class Chunk {
+		int n;				// number of tokens
+		int[] kind = new int[1024], pos = new int[1024], numVal = new int[1024];
+		String[] val = new String[1024];
+		int[] lineStart;	// line index of the chunk's own scanner
+		int nLines;		// number of entries in lineStart
+		int nChars;		// number of chars in the chunk
+
+		Chunk(Scanner s, boolean last) {
+			Token t = new Token();
+			for (;;) {
+				s.scan(t);
+				if (t.kind == eof && !last) break;
+				if (n == kind.length) {
+					kind = Arrays.copyOf(kind, 2 * n); pos = Arrays.copyOf(pos, 2 * n);
+					numVal = Arrays.copyOf(numVal, 2 * n); val = Arrays.copyOf(val, 2 * n);
+				}
+				kind[n] = t.kind; pos[n] = t.pos; numVal[n] = t.numVal; val[n] = t.val;
+				n++;
+				if (t.kind == eof) break;
+			}
+			lineStart = s.lineStart; nLines = s.nLines;
+			nChars = s.pos - 1; // the scanner counts one position for eofCh
+		}
+	}
+
 	private static boolean isAlphanumerical(char c) {
-		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+		return c < 128 && (charClass[c] == cLetter || charClass[c] == cDigit);
+	}
+
+	private static boolean isDigit(char c) {
+		return c < 128 ? charClass[c] == cDigit : Character.isDigit(c);
 	}
 	
-	private static void readName(Token t){
-		t.val = "";
+	//----- append ch to the current lexeme in lex[0..len-1]; returns the new length
+	private int putLex(int len) {
+		if (len == lex.length) lex = Arrays.copyOf(lex, 2 * len);
+		lex[len] = ch;
+		return len + 1;
+	}
 
+	//----- true if lex[0..len-1] spells s
+	private boolean lexEquals(String s, int len) {
+		if (s.length() != len) return false;
+		for (int i = 0; i < len; i++)
+			if (lex[i] != s.charAt(i)) return false;
+		return true;
+	}
 
-		while (isAlphanumerical(ch)){
-				t.val+=ch;
-				nextCh();
+	//----- token code of the keyword in lex[0..len-1], or ident if it is no keyword
+	private int keyword(int len) {
+		switch (lex[0]) {
+			case 'c': if (lexEquals("class", len)) return class_; break;
+			case 'e': if (lexEquals("else", len)) return else_; break;
+			case 'f': if (lexEquals("final", len)) return final_; break;
+			case 'i': if (lexEquals("if", len)) return if_; break;
+			case 'n': if (lexEquals("new", len)) return new_; break;
+			case 'p':
+				if (lexEquals("print", len)) return print_;
+				if (lexEquals("program", len)) return program_;
+				break;
+			case 'r':
+				if (lexEquals("read", len)) return read_;
+				if (lexEquals("return", len)) return return_;
+				break;
+			case 'v': if (lexEquals("void", len)) return void_; break;
+			case 'w': if (lexEquals("while", len)) return while_; break;
 		}
+		return ident;
+	}
 
+	//----- canonical String for the name in lex[0..len-1] with hash code h.
+	// Every occurrence of a name yields the same (String.intern'ed) object,
+	// so the symbol table can compare names by identity.
+	private String intern(int len, int h) {
+		int mask = names.length - 1;
+		int i = h & mask;
+		for (String s = names[i]; s != null; s = names[i]) {
+			if (lexEquals(s, len)) return s;
+			i = (i + 1) & mask;
+		}
+		String s = new String(lex, 0, len).intern();
+		names[i] = s; nNames++;
+		if (2 * nNames > names.length) {
+			String[] old = names;
+			names = new String[2 * old.length]; mask = names.length - 1;
+			for (String o : old) {
+				if (o == null) continue;
+				int j = o.hashCode() & mask;
+				while (names[j] != null) j = (j + 1) & mask;
+				names[j] = o;
+			}
+		}
+		return s;
+	}
 
-		for (int i = 0; i < key.length; i++){
-			if (t.val.equals(key[i])) { t.kind = keyVal[i];  return;}			}
-			t.kind = ident;
-				
+	private void readName(Token t){
+		int len = 0, h = 0;
+		if (wordScan && buf != null) { // copy the rest of the name straight from buf
+			h = ch; len = putLex(len);
+			int i = bp;
+			while (i < bufLen && isAlphanumerical((char)buf.get(i))) {
+				char c = (char)buf.get(i++);
+				h = 31 * h + c;
+				if (len == lex.length) lex = Arrays.copyOf(lex, 2 * len);
+				lex[len++] = c;
+			}
+			skip(i - bp);
+			nextCh();
+		}
+		while (isAlphanumerical(ch)){
+			h = 31 * h + ch;
+			len = putLex(len);
+			nextCh();
 		}
+		t.kind = keyword(len);
+		if (t.kind == ident) t.val = intern(len, h);
+		else t.val = key[t.kind - class_];
+	}
 
-	private static void readNumber(Token t){
-		t.val = "";
-		while (Character.isDigit(ch)) {
-			t.val += ch;
+	private void readNumber(Token t){
+		int n = 0;
+		boolean tooBig = false;
+		while (isDigit(ch)) {
+			int d = Character.digit(ch, 10);
+			if (n > (Integer.MAX_VALUE - d) / 10) tooBig = true; else n = 10 * n + d;
 			nextCh();
 		}
-		try {
-			t.numVal = Integer.parseInt(t.val);
-		} catch (NumberFormatException e) {
-			System.out.println("number too big");
-			t.numVal = 0;
+		if (tooBig) {
+			out.println("number too big");
+			n = 0;
 		}
+		t.numVal = n;
 		t.kind = number;
-
 	}
 
-	private static void readCharCon(Token t) {
-		t.val = "";
+	private void readCharCon(Token t) {
+		int len = 0;
 		t.kind = charCon;
 		t.numVal = 0;
 		while (ch != '\'' && ch != '\n' && ch != eofCh) {
-			t.val += ch;
+			len = putLex(len);
 			nextCh();
 		}
 		if (ch == '\''){ nextCh(); }
 		if (ch == '\n' || ch == eofCh) {
-			System.out.println("missing end quote");
-		} else if (t.val.length() == 1) {
-			t.numVal = t.val.charAt(0);
-		} else if (t.val.length() == 2 && t.val.charAt(0) == '\\') {
-			if (t.val.charAt(1) == 'r') t.numVal = '\r';
-			else if (t.val.charAt(1) == 'n') t.numVal = '\n';
-			else if (t.val.charAt(1) == 't') t.numVal = '\t';
-			else System.out.println("invalid escape sequence");
-		} else System.out.println("invalid char constant");	
+			out.println("missing end quote");
+		} else if (len == 1) {
+			t.numVal = lex[0];
+		} else if (len == 2 && lex[0] == '\\') {
+			if (lex[1] == 'r') t.numVal = '\r';
+			else if (lex[1] == 'n') t.numVal = '\n';
+			else if (lex[1] == 't') t.numVal = '\t';
+			else out.println("invalid escape sequence");
+		} else out.println("invalid char constant");	
 	}
 	
 	//---------- Return next input token
-	public static Token next() {
-		 // add your code here
-		 while (ch <=' ')nextCh(); //skips blanks, tabs, eol
-		 Token t = new Token(); t.line=line; t.col=col;
-		 switch (ch) {
-			//names, keywords
-			case 'a': case 'b': case 'c': case 'd': case 'e': case 'f': case 'g': case 'h': case 'i': case 'j': case 'k': case 'l': case 'm': 
-			case 'n': case 'o': case 'p': case 'q': case 'r': case 's': case 't': case 'u': case 'v': case 'w': case 'x': case 'y': case 'z': 
-			case 'A': case 'B': case 'C': case 'D': case 'E': case 'F': case 'G': case 'H': case 'I': case 'J': case 'K': case 'L': case 'M': 
-			case 'N': case 'O': case 'P': case 'Q': case 'R': case 'S': case 'T': case 'U': case 'V': case 'W': case 'X': case 'Y': case 'Z': 
-				readName(t); 
-				break;
-			//numbers
-			case '0': case '1': case '2': case '3': case '4': case '5': case '6': case '7': case '8': case '9':
-				readNumber(t);
-				break;
-			//simple tokens
-			case ';': nextCh(); t.kind=semicolon; break;
-			case '.': nextCh(); t.kind=period; break;
-			case ',': nextCh(); t.kind=comma; break;
-
-				//operators (divide in comment)
-			case '+': nextCh(); t.kind=plus; break;
-			case '-': nextCh(); t.kind=minus; break;
-			case '*': nextCh(); t.kind=times; break;
-			case '%': nextCh(); t.kind=rem; break;
-
-				//brackets/braces/parentheses
-			case '(': nextCh(); t.kind=lpar; break;
-			case ')': nextCh(); t.kind=rpar; break;
-			case '[': nextCh(); t.kind=lbrack; break;
-			case ']': nextCh(); t.kind=rbrack; break;
-			case '{': nextCh(); t.kind=lbrace; break;
-			case '}': nextCh(); t.kind=rbrace; break;
-
-			case eofCh: t.kind = eof; break; //no nextCh()
-			//compound tokens
-
-			case '=': 
-				nextCh();	
-				if (ch =='='){nextCh(); t.kind=eql;} else t.kind = assign; break;
-			case '!':
-				nextCh();
-				if (ch=='='){nextCh(); t.kind=neq;} break;
-			case '<':
-				nextCh();	
-				if (ch=='='){nextCh(); t.kind=leq;} else t.kind = lss; break;
-			case '>':
-				nextCh();
-				if (ch=='='){nextCh(); t.kind=geq;} else t.kind = gtr; break;
-			//comments && slash
-			//TODO //Think the issue line 15 col 12 is here
-			case '/':
-				nextCh();
-				if (ch == '/') {
-					do nextCh(); while (ch != '\n' && ch != eofCh);
-					t = next(); // call scanner recursively
-					} else t.kind = slash;
-				break;
-			
-			//backslash
-			case '\'':
-				nextCh();
-				readCharCon(t);
-				break;
+	public Token next() {
+		Token t = new Token();
+		next(t);
+		return t;
+	}
 
-			default:
-				nextCh(); t.kind=none;
-				break;
-			
-			
-		 }
-		 return t;
+	//---------- Read next input token into t (t is reused, no allocation)
+	public void next(Token t) {
+		if (whole != null) lexChunks();
+		if (chunks == null) {scan(t); return;}
+		Chunk c = chunks[chunkIdx];
+		while (tokIdx == c.n && chunkIdx < chunks.length - 1) {c = chunks[++chunkIdx]; tokIdx = 0;}
+		if (tokIdx == c.n) tokIdx--; // stay at eof
+		int i = tokIdx++;
+		t.kind = c.kind[i]; t.pos = c.pos[i]; t.numVal = c.numVal[i]; t.val = c.val[i];
 	}
-}
 
+	//---------- Line and column of a token position (computed from the line index on demand)
+	public int line(int pos) {
+		return lineIndex(pos) + 1;
+	}
 
+	public int col(int pos) {
+		return pos - lineStart[lineIndex(pos)];
+	}
 
+	// index of the last line start at or before pos
+	private int lineIndex(int pos) {
+		int lo = 0, hi = nLines - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (lineStart[mid] <= pos) lo = mid; else hi = mid - 1;
+		}
+		return lo;
+	}
+
+	//---------- Scan the next token of this scanner's source into t
+	private void scan(Token t) {
+		for (;;) {
+			while (ch <= ' ') { //skips blanks, tabs, eol
+				if (ch == ' ' && wordScan && buf != null) skip(blankRun());
+				nextCh();
+			}
+			t.pos=pos; t.kind=none; t.val=null; t.numVal=0;
+			switch (ch < 128 ? charClass[ch] : cOther) {
+				case cLetter: readName(t); return;
+				case cDigit:  readNumber(t); return;
+				case cSimple: t.kind = tok[ch]; nextCh(); return;
+				case cRel: // t.kind = tok[ch], or tokEql[ch] if followed by '='
+					int c = ch;
+					nextCh();
+					if (ch == '=') {nextCh(); t.kind = tokEql[c];} else t.kind = tok[c];
+					return;
+				case cSlash:
+					nextCh();
+					if (ch != '/') {t.kind = slash; return;}
+					do {
+						if (wordScan && buf != null) skip(lineRun());
+						nextCh();
+					} while (ch != '\n' && ch != eofCh);
+					break; // skip comment and scan again
+				case cQuote: nextCh(); readCharCon(t); return;
+				default:
+					if (ch == eofCh) t.kind = eof; //no nextCh()
+					else {nextCh(); t.kind = none;}
+					return;
+			}
+		}
+	}
 
+	//---------- character classes and token tables for next()
+	private static final byte
+		cOther  = 0,
+		cLetter = 1,
+		cDigit  = 2,
+		cSimple = 3,	// single-character token: tok[ch]
+		cRel    = 4,	// tok[ch] or, if followed by '=', tokEql[ch]
+		cSlash  = 5,
+		cQuote  = 6;
+	private static final byte[] charClass = new byte[128];
+	private static final int[] tok = new int[128];
+	private static final int[] tokEql = new int[128];
 
+	private static void simple(char c, int kind) {
+		charClass[c] = cSimple; tok[c] = kind;
+	}
 
+	private static void rel(char c, int kind, int kindEql) {
+		charClass[c] = cRel; tok[c] = kind; tokEql[c] = kindEql;
+	}
 
+	static {
+		for (char c = 'a'; c <= 'z'; c++) charClass[c] = cLetter;
+		for (char c = 'A'; c <= 'Z'; c++) charClass[c] = cLetter;
+		for (char c = '0'; c <= '9'; c++) charClass[c] = cDigit;
+		simple(';', semicolon); simple('.', period); simple(',', comma);
+		simple('+', plus); simple('-', minus); simple('*', times); simple('%', rem);
+		simple('(', lpar); simple(')', rpar); simple('[', lbrack); simple(']', rbrack);
+		simple('{', lbrace); simple('}', rbrace);
+		rel('=', assign, eql); rel('!', none, neq); rel('<', lss, leq); rel('>', gtr, geq);
+		charClass['/'] = cSlash;
+		charClass['\''] = cQuote;
+	}
+}
@@ -1,5 +1,10 @@
 /* MicroJava Symbol Table Scopes (HM 23-03-08)
    =============================
+The objects of a scope are kept in declaration order in the list locals.
+Larger scopes also get an open-addressing hash index over these objects,
+so that lookups do not have to walk the list.
+A frozen scope (the universe, see Tab) rejects further objects, so it can be
+searched by several compilations at once.
 */
 package MJ.SymTab;
 
@@ -7,4 +12,52 @@ public class Scope {
 	public Scope outer;		// to outer scope
 	public Obj   locals;	// to local variables of this scope
 	public int   nVars;   // number of variables in this scope
-}
\ No newline at end of file
+
+	private static final int minIndexed = 8;	// scopes with fewer objects are searched linearly
+
+	private Obj   last;		// last object in locals
+	private int   nObjs;	// number of objects in locals
+	private Obj[] index;	// hash index of locals (null while nObjs < minIndexed); size is a power of 2
+	private boolean frozen;	// no more objects may be added
+
+	// Retrieve the object with the given (interned) name from this scope, or null
+	public Obj find(String name) {
+		if (index == null) {
+			for (Obj p = locals; p != null; p = p.next)
+				if (p.name == name) return p;
+			return null;
+		}
+		int mask = index.length - 1;
+		for (int i = name.hashCode() & mask; index[i] != null; i = (i + 1) & mask)
+			if (index[i].name == name) return index[i];
+		return null;
+	}
+
+	// Append obj to locals (the caller has checked that its name is new)
+	public void add(Obj obj) {
+		if (frozen) throw new IllegalStateException("scope is frozen");
+		if (last == null) locals = obj; else last.next = obj;
+		last = obj;
+		nObjs++;
+		if (index != null) {
+			if (2 * nObjs > index.length) rehash(2 * index.length); else put(obj);
+		} else if (nObjs >= minIndexed) rehash(4 * minIndexed);
+	}
+
+	// Disallow further additions (nVars must not be changed either)
+	void freeze() {
+		frozen = true;
+	}
+
+	private void rehash(int size) {
+		index = new Obj[size];
+		for (Obj p = locals; p != null; p = p.next) put(p);
+	}
+
+	private void put(Obj obj) {
+		int mask = index.length - 1;
+		int i = obj.name.hashCode() & mask;
+		while (index[i] != null) i = (i + 1) & mask;
+		index[i] = obj;
+	}
+}
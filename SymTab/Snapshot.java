@@ -0,0 +1,197 @@
+/* MicroJava Symbol Table Snapshots
+   ================================
+A snapshot is a compact binary image of one scope (usually the global scope
+of a declaration header): its constants, variables and types with their
+levels, addresses and values, and all types they use, including the fields
+of classes. Methods are left out: their code is in the header's own object
+file, which is not linked into other programs. read() maps a snapshot back into
+a frozen Scope whose outer scope is the universe, so that it can be linked below
+a program (see Tab.header) and shared by concurrent compilations.
+
+Layout (big endian):
+  magic version
+  nNames   {len:short utf8-bytes}
+  nStructs {kind:byte [elem:int (Arr) | nFields:int (Class)]}	(after the predeclared ones)
+  {nObjs {obj}}	fields of every Class struct, in struct order
+  nVars nObjs {obj}	the scope
+where obj = kind:byte name type val adr level nPars [nObjs {obj} (Meth, Prog)]
+*/
+package MJ.SymTab;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class Snapshot {
+	private static final int magic = 0x4D4A5354;	// "MJST"
+	private static final int version = 2;
+
+	private static final Struct[] predeclared = {Tab.intType, Tab.charType, Tab.nullType, Tab.noType};
+
+	//-------------------- writing --------------------
+
+	private final Map<String, Integer> nameIds = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final Map<Struct, Integer> structIds = new IdentityHashMap<>();
+	private final List<Struct> structs = new ArrayList<>();
+
+	private Snapshot() {
+		for (Struct s: predeclared) {
+			structIds.put(s, structs.size());
+			structs.add(s);
+		}
+	}
+
+	// Write the objects of scope (and everything they refer to) to file
+	public static void write(Scope scope, Path file) throws IOException {
+		Snapshot w = new Snapshot();
+		for (Obj o = scope.locals; o != null; o = o.next)
+			if (o.kind != Obj.Meth) w.collect(o);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(w.names.size());
+			for (String n: w.names) {
+				byte[] b = n.getBytes(StandardCharsets.UTF_8);
+				out.writeShort(b.length);
+				out.write(b);
+			}
+			out.writeInt(w.structs.size() - predeclared.length);
+			for (int i = predeclared.length; i < w.structs.size(); i++) {
+				Struct s = w.structs.get(i);
+				out.writeByte(s.kind);
+				if (s.kind == Struct.Arr) out.writeInt(w.structIds.get(s.elemType));
+				else out.writeInt(s.nFields);
+			}
+			for (int i = predeclared.length; i < w.structs.size(); i++) {
+				Struct s = w.structs.get(i);
+				if (s.kind == Struct.Class) w.writeList(s.fields, out);
+			}
+			out.writeInt(scope.nVars);
+			w.writeDecls(scope.locals, out);
+		}
+	}
+
+	// Assign ids to the names and types used by o
+	private void collect(Obj o) {
+		if (!nameIds.containsKey(o.name)) {
+			nameIds.put(o.name, names.size());
+			names.add(o.name);
+		}
+		collect(o.type);
+		for (Obj p = o.locals; p != null; p = p.next) collect(p);
+	}
+
+	// Element types get smaller ids than their array types, so that read()
+	// can rebuild arrays with arrayType(); classes get their id before their
+	// fields are visited, because fields may refer back to the class.
+	private void collect(Struct s) {
+		if (structIds.containsKey(s)) return;
+		if (s.kind == Struct.Arr) {
+			collect(s.elemType);
+			if (structIds.containsKey(s)) return;	// reached through the fields of elemType
+		}
+		structIds.put(s, structs.size());
+		structs.add(s);
+		if (s.kind == Struct.Class)
+			for (Obj f = s.fields; f != null; f = f.next) collect(f);
+	}
+
+	private void writeList(Obj head, DataOutputStream out) throws IOException {
+		int n = 0;
+		for (Obj o = head; o != null; o = o.next) n++;
+		out.writeInt(n);
+		for (Obj o = head; o != null; o = o.next) writeObj(o, out);
+	}
+
+	// Write the objects of a global scope except its methods
+	private void writeDecls(Obj head, DataOutputStream out) throws IOException {
+		int n = 0;
+		for (Obj o = head; o != null; o = o.next) if (o.kind != Obj.Meth) n++;
+		out.writeInt(n);
+		for (Obj o = head; o != null; o = o.next) if (o.kind != Obj.Meth) writeObj(o, out);
+	}
+
+	private void writeObj(Obj o, DataOutputStream out) throws IOException {
+		out.writeByte(o.kind);
+		out.writeInt(nameIds.get(o.name));
+		out.writeInt(structIds.get(o.type));
+		out.writeInt(o.val);
+		out.writeInt(o.adr);
+		out.writeInt(o.level);
+		out.writeInt(o.nPars);
+		if (o.kind == Obj.Meth || o.kind == Obj.Prog) writeList(o.locals, out);
+	}
+
+	//-------------------- reading --------------------
+
+	// Map the snapshot in file back into a frozen scope below the universe
+	public static Scope read(Path file) throws IOException {
+		ByteBuffer in;
+		try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+			in = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+		try {
+			if (in.getInt() != magic || in.getInt() != version)
+				throw new IOException(file + " is not a symbol snapshot");
+			String[] names = new String[in.getInt()];
+			for (int i = 0; i < names.length; i++) {
+				byte[] b = new byte[in.getShort() & 0xffff];
+				in.get(b);
+				names[i] = new String(b, StandardCharsets.UTF_8).intern();	// see Tab.find
+			}
+			Struct[] structs = Arrays.copyOf(predeclared, predeclared.length + in.getInt());
+			for (int i = predeclared.length; i < structs.length; i++) {
+				int kind = in.get();
+				if (kind == Struct.Arr) structs[i] = structs[in.getInt()].arrayType();
+				else {
+					structs[i] = new Struct(kind);
+					structs[i].nFields = in.getInt();
+				}
+			}
+			for (int i = predeclared.length; i < structs.length; i++) {
+				Struct s = structs[i];
+				if (s.kind == Struct.Class) {
+					s.fieldScope = readScope(in, names, structs);
+					s.fieldScope.nVars = s.nFields;
+					s.fields = s.fieldScope.locals;
+				}
+			}
+			int nVars = in.getInt();
+			Scope scope = readScope(in, names, structs);
+			scope.nVars = nVars;
+			scope.outer = Tab.universe;
+			scope.freeze();
+			return scope;
+		} catch (RuntimeException e) {	// truncated buffer or bad index
+			throw new IOException(file + " is not a valid symbol snapshot");
+		}
+	}
+
+	private static Scope readScope(ByteBuffer in, String[] names, Struct[] structs) {
+		Scope s = new Scope();
+		for (int n = in.getInt(); n > 0; n--) s.add(readObj(in, names, structs));
+		return s;
+	}
+
+	private static Obj readObj(ByteBuffer in, String[] names, Struct[] structs) {
+		int kind = in.get();
+		Obj o = new Obj(kind, names[in.getInt()], structs[in.getInt()]);
+		o.val = in.getInt();
+		o.adr = in.getInt();
+		o.level = in.getInt();
+		o.nPars = in.getInt();
+		if (kind == Obj.Meth || kind == Obj.Prog) {
+			Obj last = null;
+			for (int n = in.getInt(); n > 0; n--) {
+				Obj p = readObj(in, names, structs);
+				if (last == null) o.locals = p; else last.next = p;
+				last = p;
+			}
+		}
+		return o;
+	}
+}
@@ -1,6 +1,8 @@
 /* MicroJava Type Structures  (HM 23-03-08)
    =========================
 A type structure stores the type attributes of a declared object.
+Array types are hash-consed: arrayType() returns the one canonical
+Struct for "array of this type", so all types can be compared by identity.
 */
 package MJ.SymTab;
 
@@ -15,26 +17,33 @@ public class Struct {
 	public Struct elemType; // Arr: element type
 	public int    nFields;  // Class: number of fields
 	public Obj    fields;   // Class: fields
+	public Scope  fieldScope;	// Class: scope of the fields, indexed by name (see Tab.findField)
+	private Struct arrType;	// canonical array type with this element type (created on demand)
 
 	public Struct(int kind) {
 		this.kind = kind;
 	}
 
+	// Use arrayType() for arrays; this constructor does not return canonical types
 	public Struct(int kind, Struct elemType) {
 		this.kind = kind; this.elemType = elemType;
 	}
 
+	// The canonical array type with element type "this". Synchronized because
+	// the predeclared types are shared by concurrent compilations.
+	public synchronized Struct arrayType() {
+		if (arrType == null) arrType = new Struct(Arr, this);
+		return arrType;
+	}
+
 	// Checks if this is a reference type
 	public boolean isRefType() {
 		return kind == Class || kind == Arr;
 	}
 
-	// Checks if two types are equal
+	// Checks if two types are equal (types are canonical, see arrayType)
 	public boolean equals(Struct other) {
-		if (kind == Arr)
-			return other.kind == Arr && other.elemType == elemType;
-		else
-			return other == this;
+		return other == this;
 	}
 
 	// Checks if two types are compatible (e.g. in a comparison)
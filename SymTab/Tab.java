@@ -1,6 +1,9 @@
 /* MicroJava Symbol Table  (HM 23-03-08)
    ======================
 This class manages scopes and inserts and retrieves objects.
+Every compilation (Parser) owns its own Tab. The predeclared types and
+objects form the universe scope, which is built once and shared by all
+compilations as their outermost scope; it must not be modified.
 */
 package MJ.SymTab;
 
@@ -9,32 +12,65 @@ import java.lang.*;
 import MJ.Parser;
 
 public class Tab {
-	public static Scope curScope;	// current scope
-	public static int   curLevel;	// nesting level of current scope
-
-	public static Struct intType;	// predefined types
-	public static Struct charType;
-	public static Struct nullType;
-	public static Struct noType;
-	public static Obj chrObj;		// predefined objects
-	public static Obj ordObj;
-	public static Obj lenObj;
-	public static Obj noObj;
-
-	private static void error(String msg) {
-		Parser.error(msg);
+	public static final Struct intType  = new Struct(Struct.Int);	// predefined types
+	public static final Struct charType = new Struct(Struct.Char);
+	public static final Struct nullType = new Struct(Struct.Class);
+	public static final Struct noType   = new Struct(Struct.None);
+
+	public static final Obj noObj = new Obj(Obj.Var, "???", noType);
+	public static final Obj chrObj;		// predefined objects
+	public static final Obj ordObj;
+	public static final Obj lenObj;
+
+	public static final Scope universe = new Scope();	// predeclared objects (frozen)
+
+	static {
+		predeclare(Obj.Type, "int", intType);
+		predeclare(Obj.Type, "char", charType);
+		predeclare(Obj.Con, "null", nullType);
+		chrObj = predeclare(Obj.Meth, "chr", charType);
+		chrObj.locals = new Obj(Obj.Var, "i", intType);
+		chrObj.nPars = 1;
+		ordObj = predeclare(Obj.Meth, "ord", intType);
+		ordObj.locals = new Obj(Obj.Var, "ch", charType);
+		ordObj.nPars = 1;
+		lenObj = predeclare(Obj.Meth, "len", intType);
+		lenObj.locals = new Obj(Obj.Var, "a", noType.arrayType());
+		lenObj.nPars = 1;
+		universe.freeze();
+	}
+
+	private static Obj predeclare(int kind, String name, Struct type) {
+		Obj obj = new Obj(kind, name, type);
+		universe.add(obj);
+		return obj;
+	}
+
+	public Scope curScope;	// current scope
+	public int   curLevel;	// nesting level of current scope
+	public Scope header;	// declarations linked between universe and program (see Snapshot), or null
+
+	private final Parser parser;	// compilation that owns this table
+
+	public Tab(Parser parser) {
+		this.parser = parser;
+	}
+
+	private void error(String msg) {
+		parser.error(msg);
 	}
 
 	//------------------ scope management ---------------------
 
-	public static void openScope() {
+	public void openScope() {
 		Scope s = new Scope();
+		if (curScope == header) s.nVars = header.nVars;	// globals continue after the header's
 		s.outer = curScope;
 		curScope = s;
 		curLevel++;
 	}
 
-	public static void closeScope() {
+	public void closeScope() {
 		curScope = curScope.outer;
 		curLevel--;
 	}
@@ -43,7 +79,7 @@ public class Tab {
 
 	// Create a new object with the given kind, name and type
 	// and insert it into the top scope.
-	public static Obj insert(int kind, String name, Struct type) {
+	public Obj insert(int kind, String name, Struct type) {
 		//Create object node
 		Obj obj = new Obj(kind, name, type);
 		if (kind == Obj.Var){
@@ -51,36 +87,34 @@ public class Tab {
 			obj.level = curLevel;
 		}
 		//append object node
-		Obj p = curScope.locals, last = null;
-		while (p != null){
-			if (p.name.equals(name)) error(name + " declared twice");
-			last = p; p = p.next;
-		}
-
-		if (last == null) curScope.locals = obj; else last.next = obj;
+		if (curScope.find(name) != null) error(name + " declared twice");
+		curScope.add(obj);
 		return obj;
 	}
 
+	// Names are compared by identity: the scanner interns every identifier
+	// (see Scanner.intern) and predeclared names are string literals.
+
 	// Retrieve the object with the given name from the top scope
-	public static Obj find(String name) {
-		for (Scope s = curScope; s != null; s = s.outer)
-			for (Obj p = s.locals; p != null; p = p.next){
-				if (p.name.equals(name)) return p;
-			}
+	public Obj find(String name) {
+		for (Scope s = curScope; s != null; s = s.outer) {
+			Obj p = s.find(name);
+			if (p != null) return p;
+		}
 		error(name + "is undeclared");
 		return noObj;
 	}
 	
 	// Retrieve a class field with the given name from the fields of "type"
-	public static Obj findField(String name, Struct type) {
-        Obj p = type.fields;
-        while (p != null && !p.name.equals(name)) p = p.next;
-        if (p == null) return Tab.noObj; else return p;
-    }
+	// (noObj if there is none); uses the index of the class's field scope
+	public Obj findField(String name, Struct type) {
+		Obj p = type.fieldScope == null ? null : type.fieldScope.find(name);
+		if (p == null) return noObj; else return p;
+	}
 
 	//---------------- methods for dumping the symbol table --------------
 
-	public static void dumpStruct(Struct type) {
+	public void dumpStruct(Struct type) {
 		String kind;
 		switch (type.kind) {
 			case Struct.Int:  kind = "Int  "; break;
@@ -89,20 +123,20 @@ public class Tab {
 			case Struct.Class:kind = "Class"; break;
 			default: kind = "None";
 		}
-		System.out.print(kind+" ");
+		parser.out.print(kind+" ");
 		if (type.kind == Struct.Arr) {
-			System.out.print(type.nFields + " (");
+			parser.out.print(type.nFields + " (");
 			dumpStruct(type.elemType);
-			System.out.print(")");
+			parser.out.print(")");
 		}
 		if (type.kind == Struct.Class) {
-			System.out.println(type.nFields + "<<");
+			parser.out.println(type.nFields + "<<");
 			for (Obj o = type.fields; o != null; o = o.next) dumpObj(o);
-			System.out.print(">>");
+			parser.out.print(">>");
 		}
 	}
 
-	public static void dumpObj(Obj o) {
+	public void dumpObj(Obj o) {
 		String kind;
 		switch (o.kind) {
 			case Obj.Con:  kind = "Con "; break;
@@ -111,14 +145,14 @@ public class Tab {
 			case Obj.Meth: kind = "Meth"; break;
 			default: kind = "None";
 		}
-		System.out.print(kind+" "+o.name+" "+o.val+" "+o.adr+" "+o.level+" "+o.nPars+" (");
+		parser.out.print(kind+" "+o.name+" "+o.val+" "+o.adr+" "+o.level+" "+o.nPars+" (");
 		dumpStruct(o.type);
-		System.out.println(")");
+		parser.out.println(")");
 	}
 
 	
-	public static void dumpScope(Obj head) {
-		System.out.println("--------------");
+	public void dumpScope(Obj head) {
+		parser.out.println("--------------");
 		for (Obj o = head; o != null; o = o.next) dumpObj(o);
 		for (Obj o = head; o != null; o = o.next)
 			if (o.kind == Obj.Meth || o.kind == Obj.Prog) dumpScope(o.locals);
@@ -127,31 +161,11 @@ public class Tab {
 	
 	//-------------- initialization of the symbol table ------------
 
-	public static void init(){
-		curScope = new Scope();
-		curScope.outer = null;
+	// Start a compilation in the shared universe scope (see universe),
+	// or in the header if there is one
+	public void init(){
+		curScope = header != null ? header : universe;
 		curLevel = -1;
-
-		// create predeclared types
-		intType = new Struct(Struct.Int);
-		charType = new Struct(Struct.Char);
-		nullType = new Struct(Struct.Class);
-		noType = new Struct(Struct.None);
-		noObj = new Obj(Obj.Var, "???", noType);
-
-		// create predeclared objects
-		insert(Obj.Type, "int", intType);
-		insert(Obj.Type, "char", charType);
-		insert(Obj.Con, "null", nullType);
-		chrObj = insert(Obj.Meth, "chr", charType);
-		chrObj.locals = new Obj(Obj.Var, "i", intType);
-		chrObj.nPars = 1;
-		ordObj = insert(Obj.Meth, "ord", intType);
-		ordObj.locals = new Obj(Obj.Var, "ch", charType);
-		ordObj.nPars = 1;
-		lenObj = insert(Obj.Meth, "len", intType);
-		lenObj.locals = new Obj(Obj.Var, "a", new Struct(Struct.Arr, noType));
-		lenObj.nPars = 1;
 	}
 }
 
@@ -0,0 +1,116 @@
+/* MicroJava Concurrent Compilation Tester
+   =======================================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestConcurrency.java
+   Run with
+     java MJ.TestConcurrency <inputFileName> [<compilations>]
+   Compiles the input file (default: 200 times) on a pool with one thread
+   per processor and checks that every compilation sees the very same
+   predeclared objects and types (chr, ord, len, int, char are compared
+   with ==, as the parser does), that every int or char declared in the
+   program refers to the shared type, and that all compilations produce
+   the same errors and code. Exits with status 1 if any check fails.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import MJ.SymTab.*;
+
+public class TestConcurrency {
+
+	// What one compilation saw of the shared symbol table
+	private static class Result {
+		int errors;
+		byte[] code;
+		Obj chr, ord, len;
+		Struct intType, charType;
+		List<String> problems = new ArrayList<>();
+	}
+
+	// Retrieve name from the scopes outside the program scope, or null
+	private static Obj outer(Scope globals, String name) {
+		for (Scope s = globals.outer; s != null; s = s.outer) {
+			Obj p = s.find(name);
+			if (p != null) return p;
+		}
+		return null;
+	}
+
+	private static Result compile(Path source) throws IOException {
+		Result r = new Result();
+		Parser parser = new Parser(new Scanner(source), new PrintStream(OutputStream.nullOutputStream()));
+		parser.parse();
+		r.errors = parser.errors;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		parser.code.write(bytes);
+		r.code = bytes.toByteArray();
+		if (parser.globals == null) {
+			r.problems.add("no program scope");
+			return r;
+		}
+		r.chr = outer(parser.globals, "chr");
+		r.ord = outer(parser.globals, "ord");
+		r.len = outer(parser.globals, "len");
+		Obj i = outer(parser.globals, "int"), c = outer(parser.globals, "char");
+		r.intType = i == null ? null : i.type;
+		r.charType = c == null ? null : c.type;
+		for (Obj p = parser.globals.locals; p != null; p = p.next) {
+			if (p.type.kind == Struct.Int && p.type != Tab.intType
+				|| p.type.kind == Struct.Char && p.type != Tab.charType)
+				r.problems.add(p.name + " has a private copy of its type");
+		}
+		return r;
+	}
+
+	private static int check(String what, Object got, Object expected) {
+		if (got == expected) return 0;
+		System.out.println("-- " + what + " differs: " + got + " instead of " + expected);
+		return 1;
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length == 0) {
+			System.out.println("-- synopsis: java MJ.TestConcurrency <inputfileName> [<compilations>]");
+			return;
+		}
+		Path source = Paths.get(args[0]);
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int nThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		CountDownLatch start = new CountDownLatch(1);	// let all compilations start at once
+		List<Future<Result>> futures = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			futures.add(pool.submit(() -> {start.await(); return compile(source);}));
+		start.countDown();
+		List<Result> results = new ArrayList<>();
+		for (Future<Result> f: futures) results.add(f.get());
+		pool.shutdown();
+
+		int failed = 0;
+		byte[] code = results.get(0).code;
+		int errors = results.get(0).errors;
+		for (Result r: results) {
+			failed += check("chr", r.chr, Tab.chrObj);
+			failed += check("ord", r.ord, Tab.ordObj);
+			failed += check("len", r.len, Tab.lenObj);
+			failed += check("int", r.intType, Tab.intType);
+			failed += check("char", r.charType, Tab.charType);
+			for (String p: r.problems) {
+				System.out.println("-- " + p);
+				failed++;
+			}
+			if (r.errors != errors || !Arrays.equals(r.code, code)) {
+				System.out.println("-- compilations differ: " + r.errors + " errors, " + r.code.length
+					+ " bytes instead of " + errors + " errors, " + code.length + " bytes");
+				failed++;
+			}
+		}
+		System.out.println(n + " compilations on " + nThreads + " threads, " + failed + " differences");
+		if (failed > 0) System.exit(1);
+	}
+
+}
@@ -0,0 +1,138 @@
+/* MicroJava IR Tester
+   ===================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestIR.java
+   Run with
+     java MJ.TestIR <directory>
+   For every x.mj in the directory, builds the SSA form of its methods (see
+   Parser.useIR) and compares the dump of all methods with x.ir. The dumps
+   show the IR as Lowering leaves it, i.e. with its critical edges split.
+   Then it breaks the IR of every method in each of three ways and checks
+   that the Verifier rejects it for that reason: a phi loses an argument,
+   a value is moved behind its first use, or a block loses its terminator.
+   testdata/ir holds the corpus. Exits with status 1 if a dump differs or
+   broken IR is accepted.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import MJ.IR.*;
+
+public class TestIR {
+	private static final String[] breaks = {"phi argument count", "use before definition", "missing terminator"};
+	private static final String[] reasons = {"arguments", "does not dominate", "no terminator"};	// in the Verifier's message
+
+	// SSA form of the methods of source, or null (after printing the diagnostics)
+	private static List<Method> build(Path source) throws IOException {
+		ByteArrayOutputStream diag = new ByteArrayOutputStream();
+		Parser parser = new Parser(new Scanner(source), new PrintStream(diag, true, "UTF-8"));
+		parser.useIR = true;
+		parser.irMethods = new ArrayList<>();
+		parser.parse();
+		if (parser.errors > 0) {
+			System.out.println("-- " + source + ": " + parser.errors + " errors");
+			System.out.print(diag.toString("UTF-8"));
+			return null;
+		}
+		return parser.irMethods;
+	}
+
+	// Break m in the way k; false if m has no place for it
+	private static boolean breakIR(Method m, int k) {
+		for (Block b: m.blocks) {
+			List<Instr> list = b.instrs;
+			switch (k) {
+				case 0:
+					for (Instr x: list)
+						if (x.op == Instr.Phi) {
+							x.args = Arrays.copyOf(x.args, x.args.length - 1);
+							return true;
+						}
+					break;
+				case 1:	// move an argument of x (not a phi, not the terminator) from its block right behind x
+					for (int i = 0; i < list.size() - 1; i++) {
+						Instr x = list.get(i);
+						if (x.op == Instr.Phi) continue;
+						for (Instr a: x.args) {
+							int j = list.indexOf(a);
+							if (j >= 0 && a.op != Instr.Phi) {
+								list.remove(j);
+								list.add(i, a);
+								return true;
+							}
+						}
+					}
+					break;
+				default:
+					list.remove(list.size() - 1);
+					return true;
+			}
+		}
+		return false;
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length != 1) {
+			System.out.println("-- synopsis: java MJ.TestIR <directory>");
+			return;
+		}
+		List<Path> sources = new ArrayList<>();
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(args[0]), "*.mj")) {
+			for (Path p: dir) sources.add(p);
+		}
+		Collections.sort(sources);
+		int failed = 0, rejected = 0;
+		int[] tried = new int[breaks.length];
+		for (Path source: sources) {
+			List<Method> methods = build(source);
+			if (methods == null) {
+				failed++;
+				continue;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(bytes, true, "UTF-8");
+			for (Method m: methods) m.dump(out);
+			List<String> got = Arrays.asList(bytes.toString("UTF-8").split("\n"));
+			Path golden = Paths.get(source.toString().replaceFirst("\\.mj$", ".ir"));
+			List<String> expected = Files.readAllLines(golden, StandardCharsets.UTF_8);
+			int i = 0;
+			while (i < expected.size() && i < got.size() && expected.get(i).equals(got.get(i))) i++;
+			if (i < expected.size() || i < got.size()) {
+				System.out.println("-- " + source + ", line " + (i + 1) + " of the dump:");
+				System.out.println("   expected: " + (i < expected.size() ? expected.get(i) : "end"));
+				System.out.println("   got:      " + (i < got.size() ? got.get(i) : "end"));
+				failed++;
+			}
+
+			for (int k = 0; k < breaks.length; k++) {
+				for (int n = 0; n < methods.size(); n++) {
+					Method m = build(source).get(n);	// a fresh copy for every break
+					if (!breakIR(m, k)) continue;
+					tried[k]++;
+					try {
+						Verifier.verify(m);
+						System.out.println("-- " + source + ", method " + m.meth.name + ": " + breaks[k] + " accepted");
+						failed++;
+					} catch (IllegalStateException e) {
+						if (e.getMessage().contains(reasons[k])) rejected++;
+						else {
+							System.out.println("-- " + source + ", method " + m.meth.name + ": " + breaks[k] + " rejected as " + e.getMessage());
+							failed++;
+						}
+					}
+				}
+			}
+		}
+		for (int k = 0; k < breaks.length; k++)
+			if (tried[k] == 0) {
+				System.out.println("-- no method to test " + breaks[k] + " with");
+				failed++;
+			}
+		System.out.println(sources.size() + " files, " + rejected + " broken methods rejected, " + failed + " failures");
+		if (failed > 0) System.exit(1);
+	}
+}
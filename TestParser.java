@@ -9,6 +9,7 @@
 package MJ;
 
 import java.io.*;
+import java.nio.file.Paths;
 
 public class TestParser {
 
@@ -18,9 +19,9 @@ public class TestParser {
 		if (args.length > 0) {
 			String source = args[0];
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
-				Parser.parse();
-				System.out.println(Parser.errors + " errors detected");
+				Parser parser = new Parser(new Scanner(Paths.get(source), Runtime.getRuntime().availableProcessors()));
+				parser.parse();
+				System.out.println(parser.errors + " errors detected");
 			} catch (IOException e) {
 				System.out.println("-- cannot open input file " + source);
 			}
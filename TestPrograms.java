@@ -0,0 +1,228 @@
+/* MicroJava Program Tester
+   ========================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestPrograms.java
+   Run with
+     java MJ.TestPrograms <directory>
+   For every x.mj in the directory, compiles x.mj twice, straight to code and
+   through the SSA form (see Parser.useIR), runs the object code once
+   for every line of x.in (the numbers that read() returns) and compares the
+   output with x.out, where every run starts with a line "== <input line>"
+   and a run that fails (e.g. with an index out of bounds) ends with a line
+   "-- runtime error".
+   The .out files were written from code compiled with -Dmj.inlineSize=0
+   -Dmj.noLoopOpt=true, so running the test with the default options compares
+   the inliner and the loop pass against unoptimized code; testdata/programs
+   holds the corpus. Exits with status 1 if any output differs.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import MJ.CodeGen.Code;
+
+public class TestPrograms {
+	private static final String[] modes = {"code", "IR"};
+
+	// Interpreter for MicroJava object files (see Code.write)
+	private static class Machine {
+		private static final long maxSteps = 100_000_000L;
+		private final byte[] code;
+		private final int[] data;
+		private final int mainPc;
+		private final List<int[]> heap = new ArrayList<>();	// object or array r is heap.get(r - 1)
+		private final int[] input;
+		private int nextInput;
+		final StringBuilder out = new StringBuilder();
+
+		Machine(byte[] obj, int[] input) {
+			if (obj.length < 14 || obj[0] != 'M' || obj[1] != 'J') throw new IllegalArgumentException("not an object file");
+			int codeSize = get4(obj, 2);
+			data = new int[get4(obj, 6)];
+			mainPc = get4(obj, 10);
+			code = Arrays.copyOfRange(obj, 14, 14 + codeSize);
+			this.input = input;
+		}
+
+		private static int get4(byte[] b, int p) {
+			return (b[p] << 24) | ((b[p+1] & 0xff) << 16) | ((b[p+2] & 0xff) << 8) | (b[p+3] & 0xff);
+		}
+
+		private int get2(int p) {
+			return (code[p] << 8) | (code[p+1] & 0xff);
+		}
+
+		private int[] deref(int r) {
+			if (r == 0) throw new IllegalStateException("null reference");
+			return heap.get(r - 1);
+		}
+
+		private int read() {
+			return nextInput < input.length ? input[nextInput++] : 0;
+		}
+
+		private void print(String s, int width) {
+			for (int i = s.length(); i < width; i++) out.append(' ');
+			out.append(s).append('\n');
+		}
+
+		private static boolean compare(int op, int x, int y) {
+			switch (op) {
+				case Code.eq: return x == y;
+				case Code.ne: return x != y;
+				case Code.lt: return x < y;
+				case Code.le: return x <= y;
+				case Code.gt: return x > y;
+				default:      return x >= y;
+			}
+		}
+
+		// Run main; a runtime error is an IllegalStateException
+		void run() {
+			int[] stack = new int[1 << 16];
+			int sp = 0;
+			Deque<int[]> frames = new ArrayDeque<>();
+			Deque<Integer> returns = new ArrayDeque<>();
+			int[] locals = new int[0];
+			int pc = mainPc;
+			returns.push(-1);
+			for (long steps = 0; ; steps++) {
+				if (steps > maxSteps) throw new IllegalStateException("more than " + maxSteps + " steps");
+				int op = code[pc++] & 0xff, x, y;
+				switch (op) {
+					case Code.load:  stack[sp++] = locals[code[pc++] & 0xff]; break;
+					case Code.load0: case Code.load1: case Code.load2: case Code.load3:
+						stack[sp++] = locals[op - Code.load0]; break;
+					case Code.store: locals[code[pc++] & 0xff] = stack[--sp]; break;
+					case Code.store0: case Code.store1: case Code.store2: case Code.store3:
+						locals[op - Code.store0] = stack[--sp]; break;
+					case Code.getstatic: stack[sp++] = data[get2(pc)]; pc += 2; break;
+					case Code.putstatic: data[get2(pc)] = stack[--sp]; pc += 2; break;
+					case Code.getfield:  stack[sp-1] = deref(stack[sp-1])[get2(pc)]; pc += 2; break;
+					case Code.putfield:  x = stack[--sp]; deref(stack[--sp])[get2(pc)] = x; pc += 2; break;
+					case Code.const0: case Code.const1: case Code.const2: case Code.const3: case Code.const4: case Code.const5:
+						stack[sp++] = op - Code.const0; break;
+					case Code.const_m1: stack[sp++] = -1; break;
+					case Code.const_:   stack[sp++] = get4(code, pc); pc += 4; break;
+					case Code.add: sp--; stack[sp-1] += stack[sp]; break;
+					case Code.sub: sp--; stack[sp-1] -= stack[sp]; break;
+					case Code.mul: sp--; stack[sp-1] *= stack[sp]; break;
+					case Code.div: case Code.rem:
+						sp--;
+						if (stack[sp] == 0) throw new IllegalStateException("division by zero");
+						if (op == Code.div) stack[sp-1] /= stack[sp]; else stack[sp-1] %= stack[sp];
+						break;
+					case Code.neg: stack[sp-1] = -stack[sp-1]; break;
+					case Code.shl: sp--; stack[sp-1] <<= stack[sp]; break;
+					case Code.shr: sp--; stack[sp-1] >>= stack[sp]; break;
+					case Code.new_: heap.add(new int[get2(pc) / 4]); pc += 2; stack[sp++] = heap.size(); break;
+					case Code.newarray: pc++; heap.add(new int[stack[sp-1]]); stack[sp-1] = heap.size(); break;
+					case Code.aload: case Code.baload: x = stack[--sp]; stack[sp-1] = deref(stack[sp-1])[x]; break;
+					case Code.astore: case Code.bastore:
+						y = stack[--sp]; x = stack[--sp]; deref(stack[--sp])[x] = y; break;
+					case Code.arraylength: stack[sp-1] = deref(stack[sp-1]).length; break;
+					case Code.pop: sp--; break;
+					case Code.jmp:   pc = get2(pc); break;
+					case Code.jmp_w: pc = get4(code, pc); break;
+					case Code.call:   returns.push(pc + 2); pc = get2(pc); break;
+					case Code.call_w: returns.push(pc + 4); pc = get4(code, pc); break;
+					case Code.return_: pc = returns.pop(); if (pc < 0) return; break;
+					case Code.enter:
+						x = code[pc] & 0xff; y = code[pc+1] & 0xff; pc += 2;
+						frames.push(locals);
+						locals = new int[Math.max(x, y)];
+						for (int i = x - 1; i >= 0; i--) locals[i] = stack[--sp];
+						break;
+					case Code.exit: locals = frames.pop(); break;
+					case Code.read: case Code.bread: stack[sp++] = read(); break;
+					case Code.print:  y = stack[--sp]; print(String.valueOf(stack[--sp]), y); break;
+					case Code.bprint: y = stack[--sp]; print(String.valueOf((char)stack[--sp]), y); break;
+					case Code.trap: throw new IllegalStateException("trap " + code[pc]);
+					default:
+						if (op >= Code.jeq && op <= Code.jge) {
+							x = get2(pc); pc += 2; sp -= 2;
+							if (compare(op - Code.jeq, stack[sp], stack[sp+1])) pc = x;
+						} else if (op >= Code.jeq_w && op <= Code.jge_w) {
+							x = get4(code, pc); pc += 4; sp -= 2;
+							if (compare(op - Code.jeq_w, stack[sp], stack[sp+1])) pc = x;
+						} else throw new IllegalStateException("bad opcode " + op + " at " + (pc - 1));
+				}
+			}
+		}
+	}
+
+	// Compile source; returns the object file, or null (after printing the diagnostics)
+	private static byte[] compile(Path source, boolean useIR) throws IOException {
+		ByteArrayOutputStream diag = new ByteArrayOutputStream();
+		Parser parser = new Parser(new Scanner(source), new PrintStream(diag, true, "UTF-8"));
+		parser.useIR = useIR;
+		parser.parse();
+		if (parser.errors > 0) {
+			System.out.println("-- " + source + " (" + modes[useIR ? 1 : 0] + "): " + parser.errors + " errors");
+			System.out.print(diag.toString("UTF-8"));
+			return null;
+		}
+		ByteArrayOutputStream obj = new ByteArrayOutputStream();
+		parser.code.write(obj);
+		return obj.toByteArray();
+	}
+
+	// Output of all runs of obj in the format of the .out files
+	private static List<String> runAll(byte[] obj, List<String> inputs) {
+		StringBuilder s = new StringBuilder();
+		for (String line: inputs) {
+			String[] words = line.trim().split("\\s+");
+			int[] input = new int[line.trim().length() == 0 ? 0 : words.length];
+			for (int i = 0; i < input.length; i++) input[i] = Integer.parseInt(words[i]);
+			Machine m = new Machine(obj, input);
+			s.append("== ").append(line).append('\n');
+			try {
+				m.run();
+				s.append(m.out);
+			} catch (IllegalStateException | IndexOutOfBoundsException e) {
+				s.append(m.out).append("-- runtime error\n");	// where it occurs matters, not its message
+			}
+		}
+		return Arrays.asList(s.toString().split("\n"));
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length != 1) {
+			System.out.println("-- synopsis: java MJ.TestPrograms <directory>");
+			return;
+		}
+		List<Path> sources = new ArrayList<>();
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(args[0]), "*.mj")) {
+			for (Path p: dir) sources.add(p);
+		}
+		Collections.sort(sources);
+		int failed = 0;
+		for (Path source: sources) {
+			String base = source.toString().replaceFirst("\\.mj$", "");
+			List<String> inputs = Files.readAllLines(Paths.get(base + ".in"), StandardCharsets.UTF_8);
+			List<String> expected = Files.readAllLines(Paths.get(base + ".out"), StandardCharsets.UTF_8);
+			for (int mode = 0; mode < modes.length; mode++) {
+				byte[] obj = compile(source, mode == 1);
+				if (obj == null) {
+					failed++;
+					continue;
+				}
+				List<String> got = runAll(obj, inputs);
+				int i = 0;
+				while (i < expected.size() && i < got.size() && expected.get(i).equals(got.get(i))) i++;
+				if (i < expected.size() || i < got.size()) {
+					System.out.println("-- " + source + " (" + modes[mode] + "), line " + (i + 1) + " of the output:");
+					System.out.println("   expected: " + (i < expected.size() ? expected.get(i) : "end"));
+					System.out.println("   got:      " + (i < got.size() ? got.get(i) : "end"));
+					failed++;
+				}
+			}
+		}
+		System.out.println(sources.size() + " programs, " + failed + " differences");
+		if (failed > 0) System.exit(1);
+	}
+
+}
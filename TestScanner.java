@@ -9,6 +9,7 @@
 package MJ;
 
 import java.io.*;
+import java.nio.file.Paths;
 
 public class TestScanner {
 	private static final int  // token codes
@@ -96,10 +97,10 @@ public class TestScanner {
 		if (args.length > 0) {
 			String source = args[0];
 			try {
-				Scanner.init(new InputStreamReader(new FileInputStream(source)));
+				Scanner scanner = new Scanner(Paths.get(source));
 				do {
-					t = Scanner.next();
-					System.out.print("line " + t.line + ", col " + t.col + ": " + tokenName[t.kind]);
+					t = scanner.next();
+					System.out.print("line " + scanner.line(t.pos) + ", col " + scanner.col(t.pos) + ": " + tokenName[t.kind]);
 					switch (t.kind) {
 						case ident:   System.out.println(t.val); break;
 						case number:  System.out.println(t.numVal); break;
@@ -0,0 +1,83 @@
+/* MicroJava Scanner Corpus Tester
+   ===============================
+   Place this file in a subdirectory MJ
+   Compile with
+     javac MJ\TestScannerCorpus.java
+   Run with
+     java MJ.TestScannerCorpus <directory>
+   For every x.mj in the directory, scans x.mj with the Reader, the mapped and
+   the mapped character-at-a-time scanner and compares the token streams and
+   diagnostics with x.tokens. The .tokens files were written by the scanner
+   as it was before the character-class tables (a switch over every character)
+   and are the reference for all later scanner changes; testdata/scanner holds
+   the corpus. Exits with status 1 if any stream differs.
+*/
+package MJ;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class TestScannerCorpus {
+	private static final int ident = 1, number = 2, charCon = 3, eof = 36;
+	private static final String[] modes = {"reader", "mapped", "mapped by chars"};
+
+	// Token stream of source in the format of the .tokens files
+	private static List<String> scan(Path source, int mode) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes, true, "UTF-8");
+		boolean wordScan = Scanner.wordScan;
+		Scanner.wordScan = mode != 2;
+		try {
+			Scanner scanner = mode == 0
+				? new Scanner(new InputStreamReader(Files.newInputStream(source), StandardCharsets.UTF_8))
+				: new Scanner(source);
+			scanner.out = out;
+			Token t;
+			do {
+				t = scanner.next();
+				out.print("line " + scanner.line(t.pos) + ", col " + scanner.col(t.pos) + ": " + t.kind);
+				switch (t.kind) {
+					case ident:   out.println(" " + t.val); break;
+					case number:
+					case charCon: out.println(" " + t.numVal); break;
+					default:      out.println(); break;
+				}
+			} while (t.kind != eof);
+		} finally {
+			Scanner.wordScan = wordScan;
+		}
+		return Arrays.asList(bytes.toString("UTF-8").split("\n"));
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length != 1) {
+			System.out.println("-- synopsis: java MJ.TestScannerCorpus <directory>");
+			return;
+		}
+		List<Path> sources = new ArrayList<>();
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(args[0]), "*.mj")) {
+			for (Path p: dir) sources.add(p);
+		}
+		Collections.sort(sources);
+		int failed = 0;
+		for (Path source: sources) {
+			Path golden = Paths.get(source.toString().replaceFirst("\\.mj$", ".tokens"));
+			List<String> expected = Files.readAllLines(golden, StandardCharsets.UTF_8);
+			for (int mode = 0; mode < modes.length; mode++) {
+				List<String> got = scan(source, mode);
+				int i = 0;
+				while (i < expected.size() && i < got.size() && expected.get(i).equals(got.get(i))) i++;
+				if (i < expected.size() || i < got.size()) {
+					System.out.println("-- " + source + " (" + modes[mode] + "), line " + (i + 1) + " of the token stream:");
+					System.out.println("   expected: " + (i < expected.size() ? expected.get(i) : "end"));
+					System.out.println("   got:      " + (i < got.size() ? got.get(i) : "end"));
+					failed++;
+				}
+			}
+		}
+		System.out.println(sources.size() + " files, " + failed + " differences");
+		if (failed > 0) System.exit(1);
+	}
+}
@@ -5,8 +5,7 @@ package MJ;
 
 public class Token {
 	public int kind;		// token kind
-	public int line;		// token line
-	public int col;			// token column
+	public int pos;			// token position in chars (see Scanner.line, Scanner.col)
 	public String val;	// token value
 	public int numVal;	// numeric token value (for number and charConst)
 }
\ No newline at end of file